@@ -2,27 +2,62 @@ package com.farasource.billing;
 
 import android.content.Context;
 import android.content.pm.PackageManager;
+import android.os.Handler;
+import android.os.Looper;
+import android.text.TextUtils;
 
 import androidx.activity.result.ActivityResultRegistry;
 
+import com.farasource.billing.util.BoundedExecutor;
 import com.farasource.billing.util.IABLogger;
+import com.farasource.billing.util.IabDeadlines;
 import com.farasource.billing.util.IabResult;
 import com.farasource.billing.util.Inventory;
+import com.farasource.billing.util.InventoryCache;
+import com.farasource.billing.util.InventoryDiff;
+import com.farasource.billing.util.InventorySnapshot;
+import com.farasource.billing.util.MarketInfo;
 import com.farasource.billing.util.Purchase;
+import com.farasource.billing.util.PurchaseVerifier;
 import com.farasource.billing.util.Security;
 import com.farasource.billing.util.TableCodes;
 import com.farasource.billing.communication.OnBillingResultListener;
+import com.farasource.billing.communication.OnInventoryChangedListener;
+
+import java.io.File;
+import java.util.concurrent.Executor;
 
 public class BillingClient {
 
+    private static final String INVENTORY_CACHE_FILE = "iab_inventory_cache";
+
     private final IABLogger logger = new IABLogger();
     private final Context context;
     private final ActivityResultRegistry activityResultRegistry;
     // The helper object
     BillingHelper mHelper;
     private String sku = null;
-    private boolean globalAutoConsume, autoConsume, disposed, hasLaunch, startedSetup, hasGotInventory;
+    private String base64PublicKey = null;
+    // Executor for background work, or null for the library's own pool
+    private Executor executor;
+    private int maxParallelism = BillingHelper.DEFAULT_MAX_PARALLELISM;
+    private int skuDetailsChunkSize = BillingHelper.DEFAULT_SKU_DETAILS_CHUNK_SIZE;
+    private int skuDetailsMaxInFlight = BillingHelper.DEFAULT_SKU_DETAILS_MAX_IN_FLIGHT;
+    private long skuDetailsCacheTtlMillis = BillingHelper.DEFAULT_SKU_DETAILS_CACHE_TTL_MILLIS;
+    private int skuDetailsCacheMaxEntries = BillingHelper.DEFAULT_SKU_DETAILS_CACHE_MAX_ENTRIES;
+    private IabDeadlines deadlines = IabDeadlines.DEFAULT;
+    private boolean setupRace = false;
+    // Last queried inventory, kept up to date with consumptions; readable from any thread
+    private final Inventory inventory = new Inventory();
+    // Persists the inventory across starts; null unless enabled
+    private InventoryCache inventoryCache;
+    // The inventory cache as mapped at startup, opened at most once (guarded by this) and
+    // only read until the first inventory is delivered
+    private InventoryCache.Reader inventoryCacheReader;
+    private boolean inventoryCacheOpened;
+    private boolean globalAutoConsume, autoConsume, disposed, hasLaunch, startedSetup;
     private OnBillingResultListener onBillingResultListener;
+    private OnInventoryChangedListener onInventoryChangedListener;
     // Called when consumption is complete
     BillingHelper.OnConsumeFinishedListener mConsumeFinishedListener = new BillingHelper.OnConsumeFinishedListener() {
         public void onConsumeFinished(Purchase purchase, IabResult result) {
@@ -38,6 +73,10 @@ public class BillingClient {
                 // successfully consumed, so we apply the effects of the item in our
                 // game world's logic, which in our case means filling the gas tank a bit
                 logger.logDebug("Consumption successful. Provisioning.");
+                if (inventory.hasPurchase(purchase.getSku())) {
+                    inventory.erasePurchase(purchase.getSku());
+                    saveInventoryCache();
+                }
 
             } else {
                 logger.logDebug("Error while consuming: " + result);
@@ -78,8 +117,6 @@ public class BillingClient {
         public void onQueryInventoryFinished(IabResult result, Inventory inv) {
             logger.logDebug("Query inventory finished.");
 
-            hasGotInventory = false;
-
             // Have we been disposed of in the meantime? If so, quit.
             if (mHelper == null) return;
 
@@ -97,8 +134,8 @@ public class BillingClient {
              * verifyDeveloperPayload().
              */
 
-            if (onBillingResultListener != null)
-                onBillingResultListener.onQueryInventoryFinished(inv);
+            publishInventory(inv.getSnapshot());
+            saveInventoryCache();
 
             logger.logDebug("Initial inventory query finished; enabling main UI.");
         }
@@ -111,7 +148,16 @@ public class BillingClient {
 
     public void setOnBillingResultListener(OnBillingResultListener onBillingResultListener) {
         this.onBillingResultListener = onBillingResultListener;
-        mHelper = new BillingHelper(activityResultRegistry, context);
+        mHelper = new BillingHelper.Builder(activityResultRegistry, context)
+                .setExecutor(executor)
+                .setMaxParallelism(maxParallelism)
+                .build();
+        mHelper.enableSignatureVerification(base64PublicKey);
+        mHelper.setSkuDetailsChunking(skuDetailsChunkSize, skuDetailsMaxInFlight);
+        mHelper.setSkuDetailsCache(skuDetailsCacheTtlMillis, skuDetailsCacheMaxEntries);
+        mHelper.setDeadlines(deadlines);
+        mHelper.enableSetupRace(setupRace);
+        loadInventoryCache();
         if (isMarketNotInstalled()) {
             onBillingStatus(TableCodes.MARKET_NOT_INSTALLED);
             return;
@@ -133,13 +179,11 @@ public class BillingClient {
                     // IAB is fully set up. Now, let's get an inventory of stuff we own.
                     logger.logDebug("Setup successful. Querying inventory.");
 
-                    if (!hasLaunch) {
-                        try {
-                            hasGotInventory = true;
-                            mHelper.queryInventoryAsync(mGotInventoryListener);
-                        } catch (Exception e) {
-                            hasGotInventory = false;
-                        }
+                    // Inventory queries don't hold up purchases, so this may run alongside one
+                    try {
+                        mHelper.queryInventoryAsync(mGotInventoryListener);
+                    } catch (Exception e) {
+                        logger.logDebug(e.toString());
                     }
                     startedSetup = true;
                     onBillingStatus(TableCodes.SETUP_SUCCESS);
@@ -151,6 +195,131 @@ public class BillingClient {
         }
     }
 
+    /**
+     * Verifies the signature of every purchase in the queried inventory with the given key.
+     * Purchases that fail are reported through {@link Inventory#getVerificationFailures()}.
+     * Call before {@link #setOnBillingResultListener} or pass null to turn it off.
+     *
+     * @throws IllegalArgumentException if the key is invalid
+     */
+    public void enableSignatureVerification(String base64PublicKey) {
+        if (!TextUtils.isEmpty(base64PublicKey)) {
+            // parsed now, so that a bad key can't fail setup half way
+            PurchaseVerifier.getInstance(base64PublicKey);
+        }
+        this.base64PublicKey = base64PublicKey;
+        if (mHelper != null && !disposed) {
+            mHelper.enableSignatureVerification(base64PublicKey);
+        }
+    }
+
+    /**
+     * Limits how many SKUs are sent per getSkuDetails call and how many calls run at the same
+     * time, see {@link BillingHelper#setSkuDetailsChunking(int, int)}.
+     */
+    public void setSkuDetailsChunking(int chunkSize, int maxInFlight) {
+        if (mHelper != null && !disposed) {
+            mHelper.setSkuDetailsChunking(chunkSize, maxInFlight);
+        } else if (chunkSize < 1 || maxInFlight < 1) {
+            throw new IllegalArgumentException("chunkSize and maxInFlight must be positive.");
+        }
+        this.skuDetailsChunkSize = chunkSize;
+        this.skuDetailsMaxInFlight = maxInFlight;
+    }
+
+    /**
+     * Connects to the billing service and through broadcasts at the same time and uses the
+     * first that works, see {@link BillingHelper#enableSetupRace(boolean)}. Call before
+     * {@link #setOnBillingResultListener}.
+     */
+    public void enableSetupRace(boolean enable) {
+        this.setupRace = enable;
+    }
+
+    /**
+     * Sets how long the market may take to answer each kind of request over the broadcast
+     * connection, see {@link BillingHelper#setDeadlines(IabDeadlines)}. Call before
+     * {@link #setOnBillingResultListener}.
+     */
+    public void setDeadlines(IabDeadlines deadlines) {
+        if (deadlines == null) {
+            throw new IllegalArgumentException("deadlines can't be null.");
+        }
+        this.deadlines = deadlines;
+    }
+
+    /**
+     * Sets how long SKU details are reused between inventory queries, see
+     * {@link BillingHelper#setSkuDetailsCache(long, int)}. Pass a TTL of 0 to disable.
+     */
+    public void setSkuDetailsCache(long ttlMillis, int maxEntries) {
+        // checked now, not when the helper is created
+        BillingHelper.checkSkuDetailsCache(ttlMillis, maxEntries);
+        if (mHelper != null && !disposed) {
+            mHelper.setSkuDetailsCache(ttlMillis, maxEntries);
+        }
+        this.skuDetailsCacheTtlMillis = ttlMillis;
+        this.skuDetailsCacheMaxEntries = maxEntries;
+    }
+
+    /**
+     * Keeps the last queried inventory in app-private storage. At the next start it is
+     * delivered through {@link OnBillingResultListener#onQueryInventoryFinished} right away,
+     * marked as {@link Inventory#isStale() stale}, while the market is queried in the
+     * background; the fresh inventory is then only delivered if it differs from the cached
+     * one. Call before {@link #setOnBillingResultListener}. Disabling deletes the cache.
+     */
+    public void enableInventoryCache(boolean enabled) {
+        if (enabled) {
+            if (inventoryCache == null) {
+                inventoryCache = new InventoryCache(new File(context.getFilesDir(), INVENTORY_CACHE_FILE));
+            }
+        } else {
+            final InventoryCache cache = inventoryCache != null ? inventoryCache
+                    : new InventoryCache(new File(context.getFilesDir(), INVENTORY_CACHE_FILE));
+            inventoryCache = null;
+            closeInventoryCache();
+            runInBackground(cache::clear);
+        }
+    }
+
+    /**
+     * Reports only the purchases that were added, removed or changed by each inventory
+     * refresh, compared to the inventory before it. Purchases consumed through this
+     * client are not reported as removed.
+     */
+    public void setOnInventoryChangedListener(OnInventoryChangedListener onInventoryChangedListener) {
+        this.onInventoryChangedListener = onInventoryChangedListener;
+    }
+
+    /**
+     * Returns the inventory as of the last successful query, minus the purchases consumed
+     * since. The snapshot is immutable, so it can be read from any thread without locking;
+     * it is empty until the first query finishes.
+     */
+    public InventorySnapshot getInventorySnapshot() {
+        return inventory.getSnapshot();
+    }
+
+    /**
+     * Returns the purchase of the given product from the latest inventory, or null if it
+     * isn't owned. Until the first inventory is delivered, this reads just that purchase
+     * from the inventory cache (if enabled), which is quick enough for an entitlement
+     * check at startup. A cached purchase is only returned if its signature passes
+     * {@link #enableSignatureVerification verification}, when that is enabled.
+     */
+    public Purchase getOwnedPurchase(String sku) {
+        InventorySnapshot snapshot = inventory.getSnapshot();
+        InventoryCache cache = inventoryCache;
+        if (snapshot != InventorySnapshot.EMPTY || cache == null) {
+            return snapshot.getPurchase(sku);
+        }
+        // normally opened by loadInventoryCache already
+        InventoryCache.Reader reader = openInventoryCache(cache);
+        Purchase purchase = reader != null ? reader.getPurchase(sku) : null;
+        return purchase != null && verifyCachedPurchase(purchase) ? purchase : null;
+    }
+
     public void rebuildActivityResultRegistry(ActivityResultRegistry registry) {
         if (mHelper != null) {
             mHelper.buildBillingLauncher(registry);
@@ -159,7 +328,11 @@ public class BillingClient {
 
     @Deprecated()
     public static boolean verifyPurchase(Purchase purchase, String base64PublicKey) {
-        return Security.verifyPurchase(base64PublicKey, purchase.getOriginalJson(), purchase.getSignature());
+        if (TextUtils.isEmpty(base64PublicKey)) {
+            return Security.verifyPurchase(base64PublicKey, purchase.getOriginalJson(), purchase.getSignature());
+        }
+        return PurchaseVerifier.getInstance(base64PublicKey)
+                .verifyPurchase(purchase.getOriginalJson(), purchase.getSignature());
     }
 
     public void launchBilling(String sku) {
@@ -186,7 +359,7 @@ public class BillingClient {
         if (disposed) {
             onBillingStatus(TableCodes.BILLING_DISPOSED);
             return;
-        } else if (hasLaunch || hasGotInventory) {
+        } else if (hasLaunch) {
             onBillingStatus(TableCodes.BILLING_IS_IN_PROGRESS);
             return;
         } else if (isMarketNotInstalled()) {
@@ -258,13 +431,152 @@ public class BillingClient {
         }
     }
 
+    // Answered from the process-wide MarketInfo cache, so launching a purchase makes no
+    // package manager call
     private boolean isMarketNotInstalled() {
-        return !isPackageInstalled(context, mHelper.getMarketId());
+        return !MarketInfo.get(context).isMarketInstalled();
     }
 
 
+    // Publishes a new inventory and tells the listeners about it. A fresh inventory that
+    // matches the stale one already delivered from the cache is not delivered again.
+    private void publishInventory(InventorySnapshot snapshot) {
+        InventorySnapshot previous = inventory.getSnapshot();
+        inventory.setSnapshot(snapshot);
+        InventoryDiff diff = InventoryDiff.between(previous, snapshot);
+        logger.logDebug("Inventory changes: " + diff);
+
+        if (!diff.isEmpty() && onInventoryChangedListener != null) {
+            onInventoryChangedListener.onInventoryChanged(diff.getAdded(), diff.getRemoved(),
+                    diff.getChanged(), snapshot);
+        }
+        if (previous.isStale() && diff.isEmpty() && !diff.productsChanged()) {
+            logger.logDebug("Fresh inventory matches the cached one.");
+            return;
+        }
+        if (onBillingResultListener != null)
+            onBillingResultListener.onQueryInventoryFinished(new Inventory(snapshot));
+    }
+
+    private void loadInventoryCache() {
+        final InventoryCache cache = inventoryCache;
+        if (cache == null) return;
+        final Handler handler = new Handler(Looper.getMainLooper());
+        runInBackground(() -> {
+            final InventorySnapshot cached = verifyCachedPurchases(cache.load(openInventoryCache(cache)));
+            if (cached == null) {
+                closeInventoryCache();
+                return;
+            }
+            handler.post(() -> {
+                // Too late if we were disposed of or a query already finished
+                if (mHelper == null || inventory.getSnapshot() != InventorySnapshot.EMPTY) return;
+                logger.logDebug("Delivering cached inventory.");
+                publishInventory(cached);
+            });
+        });
+    }
+
+    // The cache is just a file, so its purchases are verified like queried ones before they count
+    private InventorySnapshot verifyCachedPurchases(InventorySnapshot cached) {
+        if (cached == null || TextUtils.isEmpty(base64PublicKey)) return cached;
+        InventorySnapshot.Builder verified = null;
+        for (Purchase purchase : cached.getPurchases()) {
+            if (verifyCachedPurchase(purchase)) continue;
+            logger.logWarn("Cached purchase signature verification FAILED for sku " + purchase.getSku());
+            if (verified == null) verified = new InventorySnapshot.Builder(cached);
+            verified.erasePurchase(purchase.getSku()).addVerificationFailure(purchase);
+        }
+        return verified != null ? verified.build() : cached;
+    }
+
+    private boolean verifyCachedPurchase(Purchase purchase) {
+        if (TextUtils.isEmpty(base64PublicKey)) return true;
+        // the signature only covers the JSON, so the cached fields have to agree with it
+        if (!purchase.matchesOriginalJson()) return false;
+        BillingHelper helper = mHelper;
+        if (helper != null) {
+            return helper.verifySignature(purchase);
+        }
+        return PurchaseVerifier.getInstance(base64PublicKey)
+                .verifyPurchase(purchase.getOriginalJson(), purchase.getSignature());
+    }
+
+    private synchronized InventoryCache.Reader openInventoryCache(InventoryCache cache) {
+        if (!inventoryCacheOpened) {
+            inventoryCacheOpened = true;
+            inventoryCacheReader = cache.open();
+        }
+        return inventoryCacheReader;
+    }
+
+    private synchronized void closeInventoryCache() {
+        inventoryCacheReader = null;
+    }
+
+    private void saveInventoryCache() {
+        final InventoryCache cache = inventoryCache;
+        if (cache == null) return;
+        runInBackground(() -> {
+            // read the snapshot under the cache's lock so an older one never overwrites a newer one
+            synchronized (cache) {
+                cache.save(inventory.getSnapshot());
+            }
+        });
+    }
+
+    private void runInBackground(Runnable runnable) {
+        BillingHelper helper = mHelper;
+        if (helper != null) {
+            helper.getExecutor().execute(runnable);
+        } else {
+            (executor != null ? executor : BoundedExecutor.defaultPool()).execute(runnable);
+        }
+    }
+
     private void onBillingStatus(int code) {
         if (onBillingResultListener != null) onBillingResultListener.onBillingStatus(code);
     }
 
-}
\ No newline at end of file
+    /**
+     * Creates a {@link BillingClient} that runs its background work on the app's own executor,
+     * so that billing shares the app's thread pools.
+     */
+    public static class Builder {
+        private final ActivityResultRegistry registry;
+        private final Context context;
+        private Executor executor;
+        private int maxParallelism = BillingHelper.DEFAULT_MAX_PARALLELISM;
+
+        public Builder(ActivityResultRegistry registry, Context context) {
+            this.registry = registry;
+            this.context = context;
+        }
+
+        /**
+         * Sets the executor to run background work on, instead of the library's own pool.
+         */
+        public Builder setExecutor(Executor executor) {
+            this.executor = executor;
+            return this;
+        }
+
+        /**
+         * Sets how many background tasks may run at the same time.
+         */
+        public Builder setMaxParallelism(int maxParallelism) {
+            if (maxParallelism < 1) {
+                throw new IllegalArgumentException("maxParallelism must be positive.");
+            }
+            this.maxParallelism = maxParallelism;
+            return this;
+        }
+
+        public BillingClient build() {
+            BillingClient client = new BillingClient(registry, context);
+            client.executor = executor;
+            client.maxParallelism = maxParallelism;
+            return client;
+        }
+    }
+}
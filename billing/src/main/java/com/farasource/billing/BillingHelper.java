@@ -16,30 +16,48 @@
 package com.farasource.billing;
 
 import android.content.Context;
-import android.content.pm.ApplicationInfo;
-import android.content.pm.PackageManager;
 import android.os.Bundle;
 import android.os.Handler;
+import android.os.Looper;
 import android.os.RemoteException;
+import android.os.SystemClock;
 import android.text.TextUtils;
 
 import org.json.JSONException;
 
+import java.io.File;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import androidx.activity.result.ActivityResultRegistry;
+import androidx.core.content.ContextCompat;
+import com.farasource.billing.util.BillingFuture;
+import com.farasource.billing.util.BoundedExecutor;
 import com.farasource.billing.util.BroadcastIAB;
 import com.farasource.billing.util.IAB;
 import com.farasource.billing.util.IABLogger;
+import com.farasource.billing.util.IabDeadlines;
+import com.farasource.billing.util.MarketInfo;
+import com.farasource.billing.util.OperationScheduler;
 import com.farasource.billing.util.IabException;
 import com.farasource.billing.util.IabResult;
 import com.farasource.billing.util.Inventory;
+import com.farasource.billing.util.InventorySnapshot;
+import com.farasource.billing.util.ParallelBatch;
 import com.farasource.billing.util.Purchase;
-import com.farasource.billing.util.Security;
+import com.farasource.billing.util.PurchaseVerifier;
 import com.farasource.billing.util.ServiceIAB;
 import com.farasource.billing.util.SkuDetails;
+import com.farasource.billing.util.SkuDetailsCache;
+import com.farasource.billing.util.VerifiedSignatureMemo;
 import com.farasource.billing.communication.BillingSupportCommunication;
 import com.farasource.billing.communication.OnBroadCastConnectListener;
 import com.farasource.billing.communication.OnServiceConnectListener;
@@ -69,9 +87,11 @@ import com.farasource.billing.communication.OnServiceConnectListener;
  * A note about threading: When using this object from a background thread, you may
  * call the blocking versions of methods; when using from a UI thread, call
  * only the asynchronous versions and handle the results via callbacks.
- * Also, notice that you can only call one asynchronous operation at a time;
- * attempting to start a second asynchronous operation while the first one
- * has not yet completed will result in an exception being thrown.
+ * Asynchronous operations may be started while others are still running: they are
+ * queued and start in the order they were called. Inventory queries and consumes run
+ * alongside each other when the connection allows concurrent requests, and one at a
+ * time otherwise; a purchase flow always runs alone. Disposing of the helper cancels
+ * the operations still waiting.
  *
  * @author Bruno Oliveira (Google)
  */
@@ -98,6 +118,8 @@ public class BillingHelper {
     public static final int IABHELPER_UNKNOWN_ERROR = -1008;
     public static final int IABHELPER_SUBSCRIPTIONS_NOT_AVAILABLE = -1009;
     public static final int IABHELPER_INVALID_CONSUMPTION = -1010;
+    public static final int IABHELPER_TIMEOUT = -1011;
+    public static final int IABHELPER_CANCELLED = -1012;
     // Keys for the responses from InAppBillingService
     public static final String RESPONSE_CODE = "RESPONSE_CODE";
     public static final String RESPONSE_GET_SKU_DETAILS_LIST = "DETAILS_LIST";
@@ -114,8 +136,24 @@ public class BillingHelper {
     // some fields on the getSkuDetails response bundle
     public static final String GET_SKU_DETAILS_ITEM_LIST = "ITEM_ID_LIST";
     public static final String GET_SKU_DETAILS_ITEM_TYPE_LIST = "ITEM_TYPE_LIST";
-    private static final String META_DATA_BIND_ADDRESS = "market_bind_address";
-    private static final String META_DATA_MARKET_ID = "market_id";
+    // Default limit of background tasks running at the same time
+    public static final int DEFAULT_MAX_PARALLELISM =
+            Math.max(2, Math.min(4, Runtime.getRuntime().availableProcessors()));
+    // How many threads (including the querying one) verify signatures of one page
+    private static final int VERIFY_PARALLELISM =
+            Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors()));
+    // Files and size of the memo of already verified purchase signatures
+    private static final String SIGNATURE_MEMO_FILE = "iab_verified_signatures";
+    private static final String SIGNATURE_MEMO_SECRET_FILE = "iab_verified_signatures_key";
+    private static final int SIGNATURE_MEMO_MAX_ENTRIES = 1024;
+    // Default number of SKUs per getSkuDetails call and of such calls at the same time
+    public static final int DEFAULT_SKU_DETAILS_CHUNK_SIZE = 20;
+    public static final int DEFAULT_SKU_DETAILS_MAX_IN_FLIGHT = 4;
+    // Default number of purchases consumed at the same time by a multi-item consume
+    public static final int DEFAULT_CONSUME_PARALLELISM = 4;
+    // Default lifetime and size of the in-memory SKU details cache
+    public static final long DEFAULT_SKU_DETAILS_CACHE_TTL_MILLIS = 10 * 60 * 1000;
+    public static final int DEFAULT_SKU_DETAILS_CACHE_MAX_ENTRIES = 512;
     private final IABLogger logger = new IABLogger();
     BillingLauncher billingLauncher;
     IAB iabConnection;
@@ -125,7 +163,33 @@ public class BillingHelper {
     Context mContext;
     // The request code used to launch purchase flow
     int mRequestCode;
-    // Public key for verifying signature, in base64 encoding
+    // Verifier for purchase signatures, or null if inventory verification is disabled
+    volatile PurchaseVerifier mVerifier;
+    // Signatures that were verified on earlier queries, shared with later ones
+    VerifiedSignatureMemo mSignatureMemo;
+    volatile int mSkuDetailsChunkSize = DEFAULT_SKU_DETAILS_CHUNK_SIZE;
+    volatile int mSkuDetailsMaxInFlight = DEFAULT_SKU_DETAILS_MAX_IN_FLIGHT;
+    volatile int mConsumeParallelism = DEFAULT_CONSUME_PARALLELISM;
+    // How long the broadcast connection waits for each kind of market answer
+    volatile IabDeadlines mDeadlines = IabDeadlines.DEFAULT;
+    // Whether setup starts the service and broadcast connections at the same time
+    boolean mSetupRace = false;
+    // The setup race in progress, if any
+    private SetupRace mRunningSetupRace;
+    // Details returned by earlier queries, or null if caching is disabled
+    volatile SkuDetailsCache mSkuDetailsCache = new SkuDetailsCache(DEFAULT_SKU_DETAILS_CACHE_TTL_MILLIS,
+            DEFAULT_SKU_DETAILS_CACHE_MAX_ENTRIES);
+    // The inventory query started by queryInventoryAsync that is running, and the one that
+    // will run after it; both guarded by mInventoryQueryLock
+    private final Object mInventoryQueryLock = new Object();
+    private InventoryQuery mRunningQuery;
+    private InventoryQuery mNextQuery;
+    // Runs all background work: async operations, signature verification and concurrent queries
+    private final BoundedExecutor mExecutor;
+    // Orders the async operations: reads and consumes overlap, a purchase runs alone
+    private final OperationScheduler mOperations = new OperationScheduler(logger);
+    // The purchase flow holding the exclusive slot, if any
+    private volatile PurchaseFlow mPurchaseFlow;
 
     /**
      * Creates an instance. After creation, it will not yet be ready to use. You must perform
@@ -135,8 +199,14 @@ public class BillingHelper {
      * @param ctx Your application or Activity context. Needed to bind to the in-app billing service.
      */
     protected BillingHelper(ActivityResultRegistry registry, Context ctx) {
+        this(registry, ctx, null, DEFAULT_MAX_PARALLELISM);
+    }
+
+    private BillingHelper(ActivityResultRegistry registry, Context ctx, Executor executor, int maxParallelism) {
         buildBillingLauncher(registry);
         mContext = ctx.getApplicationContext();
+        mExecutor = new BoundedExecutor(executor != null ? executor : BoundedExecutor.defaultPool(),
+                maxParallelism);
         logger.logDebug("IAB helper created.");
     }
 
@@ -169,7 +239,9 @@ public class BillingHelper {
                 "-1007:Missing token/" +
                 "-1008:Unknown error/" +
                 "-1009:Subscriptions not available/" +
-                "-1010:Invalid consumption attempt").split("/");
+                "-1010:Invalid consumption attempt/" +
+                "-1011:Operation timed out/" +
+                "-1012:Operation cancelled").split("/");
 
         if (code <= IABHELPER_ERROR_BASE) {
             int index = IABHELPER_ERROR_BASE - code;
@@ -195,6 +267,135 @@ public class BillingHelper {
         logger.mDebugLog = enable;
     }
 
+    /**
+     * Makes {@link #startSetup} connect to the billing service and to the market's broadcast
+     * receiver at the same time, instead of only trying broadcasts once binding the service
+     * failed. The first connection that reports billing as supported is used and the other
+     * one is closed; the service wins a tie. Call before {@link #startSetup}.
+     */
+    public void enableSetupRace(boolean enable) {
+        mSetupRace = enable;
+    }
+
+    /**
+     * Sets how SKU details are queried: at most {@code chunkSize} SKUs per getSkuDetails call,
+     * and at most {@code maxInFlight} calls at the same time if the connection allows
+     * concurrent requests. A chunk that fails doesn't fail the whole query; its SKUs are
+     * reported through {@link Inventory#getSkuDetailsFailures()}.
+     */
+    public void setSkuDetailsChunking(int chunkSize, int maxInFlight) {
+        if (chunkSize < 1 || maxInFlight < 1) {
+            throw new IllegalArgumentException("chunkSize and maxInFlight must be positive.");
+        }
+        mSkuDetailsChunkSize = chunkSize;
+        mSkuDetailsMaxInFlight = maxInFlight;
+    }
+
+    /**
+     * Sets how many purchases {@link #consumeAsync(List, OnConsumeMultiFinishedListener)}
+     * consumes at the same time if the connection allows concurrent requests. Results are
+     * reported in the order of the purchases either way.
+     */
+    public void setConsumeParallelism(int parallelism) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("parallelism must be positive.");
+        }
+        mConsumeParallelism = parallelism;
+    }
+
+    /**
+     * Sets how long the broadcast connection waits for the market to answer each kind of
+     * request before failing it with {@link #IABHELPER_TIMEOUT}. Call before {@link #startSetup}.
+     */
+    public void setDeadlines(IabDeadlines deadlines) {
+        if (deadlines == null) {
+            throw new IllegalArgumentException("deadlines can't be null.");
+        }
+        mDeadlines = deadlines;
+    }
+
+    /**
+     * Sets how long the details of a SKU are reused before the market is asked again, and how
+     * many details are kept at most. Pass a TTL of 0 to always ask the market.
+     */
+    public void setSkuDetailsCache(long ttlMillis, int maxEntries) {
+        checkSkuDetailsCache(ttlMillis, maxEntries);
+        mSkuDetailsCache = ttlMillis > 0 ? new SkuDetailsCache(ttlMillis, maxEntries) : null;
+    }
+
+    /**
+     * Checks the arguments of {@link #setSkuDetailsCache(long, int)}.
+     *
+     * @throws IllegalArgumentException if the TTL is negative, or the cache is enabled with
+     *                                  no room for entries
+     */
+    static void checkSkuDetailsCache(long ttlMillis, int maxEntries) {
+        if (ttlMillis < 0 || (ttlMillis > 0 && maxEntries < 1)) {
+            throw new IllegalArgumentException("ttlMillis can't be negative and maxEntries must be positive.");
+        }
+    }
+
+    /**
+     * Drops all cached SKU details, so that the next query asks the market for all of them.
+     */
+    public void invalidateSkuDetailsCache() {
+        SkuDetailsCache cache = mSkuDetailsCache;
+        if (cache != null) {
+            cache.clear();
+        }
+    }
+
+    /**
+     * Enables verified-inventory mode. When enabled, the signature of every purchase
+     * returned by {@link #queryInventory} is checked against the given key; purchases
+     * that fail verification are left out of the owned purchases and reported through
+     * {@link Inventory#getVerificationFailures()} instead.
+     * <p>
+     * Successfully verified signatures are remembered in app-private storage, so that
+     * purchases that did not change since the last query are not verified again.
+     *
+     * @param base64PublicKey the app's base64-encoded public key, or null to disable verification.
+     * @throws IllegalArgumentException if the key is invalid
+     */
+    public void enableSignatureVerification(String base64PublicKey) {
+        checkNotDisposed();
+        PurchaseVerifier verifier = TextUtils.isEmpty(base64PublicKey) ? null
+                : PurchaseVerifier.getInstance(base64PublicKey);
+        if (verifier != null && mSignatureMemo == null) {
+            // the secret stays out of backups, so a restored memo can't vouch for anything
+            mSignatureMemo = new VerifiedSignatureMemo(new File(mContext.getFilesDir(), SIGNATURE_MEMO_FILE),
+                    new File(ContextCompat.getNoBackupFilesDir(mContext), SIGNATURE_MEMO_SECRET_FILE),
+                    SIGNATURE_MEMO_MAX_ENTRIES);
+        }
+        // published last, so a query that sees the verifier also sees the memo
+        mVerifier = verifier;
+    }
+
+    /**
+     * Checks the signature of a purchase that did not come from {@link #queryInventory},
+     * such as one read back from a cache, the same way queried purchases are checked.
+     *
+     * @return true if the signature matches, or if signature verification is disabled
+     */
+    public boolean verifySignature(Purchase purchase) {
+        PurchaseVerifier verifier = mVerifier;
+        return verifier == null || purchase.verifySignature(verifier, mSignatureMemo);
+    }
+
+    /**
+     * Future-based variant of {@link #startSetup}. The future completes on the UI thread once
+     * setup is done, and fails if setup did.
+     */
+    public BillingFuture<Void> startSetupFuture() {
+        final BillingFuture<Void> future = new BillingFuture<Void>();
+        startSetup(new OnIabSetupFinishedListener() {
+            public void onIabSetupFinished(IabResult result) {
+                future.complete(result, null);
+            }
+        });
+        return future;
+    }
+
     /**
      * Starts the setup process. This will start up the setup process asynchronously.
      * You will be notified through the listener when the setup process is complete.
@@ -206,12 +407,18 @@ public class BillingHelper {
 
         // If already set up, can't do it again.
         checkNotDisposed();
-        if (iabConnection != null) {
+        if (iabConnection != null || mRunningSetupRace != null) {
             throw new IllegalStateException("IAB helper is already set up.");
         }
         logger.logDebug("Starting in-app billing setup.");
+        if (mSetupRace) {
+            mRunningSetupRace = new SetupRace(listener);
+            mRunningSetupRace.start();
+            return;
+        }
 
         ServiceIAB serviceIAB = new ServiceIAB(logger, getMarketId(), getBindAddress());
+        serviceIAB.setExecutor(mExecutor);
 
         OnServiceConnectListener connectListener = new OnServiceConnectListener() {
             @Override
@@ -230,9 +437,23 @@ public class BillingHelper {
     }
 
     private void startAlternativeScenario(final OnIabSetupFinishedListener listener) {
-        OnBroadCastConnectListener broadCastConnectListener = () -> checkBillingSupported(listener);
+        final BroadcastIAB broadcastIAB = new BroadcastIAB(mContext, logger, getMarketId(), getBindAddress());
+        OnBroadCastConnectListener broadCastConnectListener = new OnBroadCastConnectListener() {
+            @Override
+            public void connected() {
+                checkBillingSupported(listener);
+            }
 
-        BroadcastIAB broadcastIAB = new BroadcastIAB(mContext, logger, getMarketId(), getBindAddress());
+            @Override
+            public void couldNotConnect() {
+                broadcastIAB.dispose(mContext);
+                iabConnection = null;
+                listener.onIabSetupFinished(new IabResult(IABHELPER_TIMEOUT,
+                        "Market didn't answer the billing broadcast."));
+            }
+        };
+
+        broadcastIAB.setDeadlines(mDeadlines);
         boolean canConnectToReceiver = broadcastIAB.connect(mContext, broadCastConnectListener);
         logger.logDebug("canConnectToReceiver = " + canConnectToReceiver);
         if (canConnectToReceiver) {
@@ -244,46 +465,16 @@ public class BillingHelper {
         }
     }
 
+    /**
+     * Returns the market package name declared in the manifest. Looked up once per process,
+     * see {@link MarketInfo}.
+     */
     public String getMarketId() {
-        ApplicationInfo applicationInfo;
-        try {
-            applicationInfo = mContext.getPackageManager()
-                    .getApplicationInfo(mContext.getPackageName(), PackageManager.GET_META_DATA);
-            Bundle bundle = applicationInfo.metaData;
-            if (bundle != null) {
-                return bundle.getString(META_DATA_MARKET_ID);
-            } else {
-                return "";
-            }
-        } catch (PackageManager.NameNotFoundException e) {
-            return "";
-        }
+        return MarketInfo.get(mContext).getMarketId();
     }
 
     private String getBindAddress() {
-        ApplicationInfo applicationInfo;
-        try {
-            applicationInfo = mContext.getPackageManager()
-                    .getApplicationInfo(mContext.getPackageName(), PackageManager.GET_META_DATA);
-            Bundle bundle = applicationInfo.metaData;
-            if (bundle != null) {
-                return bundle.getString(META_DATA_BIND_ADDRESS);
-            } else {
-                return "";
-            }
-        } catch (PackageManager.NameNotFoundException e) {
-            return "";
-        }
-    }
-
-    private boolean isMarketInstalled(String marketId) {
-        try {
-            return mContext.getPackageManager().getApplicationInfo(marketId, 0) != null;
-        } catch (PackageManager.NameNotFoundException e) {
-            return false;
-        } catch (Exception e) {
-            return false;
-        }
+        return MarketInfo.get(mContext).getBindAddress();
     }
 
     private void checkBillingSupported(final OnIabSetupFinishedListener listener) {
@@ -319,19 +510,34 @@ public class BillingHelper {
      * disposed of, it can't be used again.
      */
     public void dispose() {
-        if (billingLauncher != null) {
-            billingLauncher.unregister();
-            billingLauncher = null;
-        }
         logger.logDebug("Disposing.");
+        // nothing queued will run any more; let whoever is waiting for it know
+        mOperations.cancelQueued();
+        unregisterBillingLauncher();
+        if (mRunningSetupRace != null) {
+            mRunningSetupRace.cancel();
+            mRunningSetupRace = null;
+        }
         if (iabConnection != null) {
             iabConnection.dispose(mContext);
         }
-
         mDisposed = true;
         mContext = null;
     }
 
+    // Without the launcher the purchase result can't arrive, so the purchase flow in progress
+    // gives up its slot
+    private void unregisterBillingLauncher() {
+        if (billingLauncher != null) {
+            billingLauncher.unregister();
+            billingLauncher = null;
+        }
+        PurchaseFlow flow = mPurchaseFlow;
+        if (flow != null) {
+            flow.abandon();
+        }
+    }
+
     private void checkNotDisposed() {
         if (mDisposed) {
             throw new IllegalStateException("IabHelper was disposed of, so it cannot be used.");
@@ -355,6 +561,21 @@ public class BillingHelper {
         launchPurchaseFlow(sku, listener, "");
     }
 
+    /**
+     * Future-based variant of {@link #launchPurchaseFlow(String, String, OnIabPurchaseFinishedListener, String)}.
+     * The future completes on the UI thread with the purchase. Cancelling the future doesn't
+     * stop the purchase flow, it only drops its outcome.
+     */
+    public BillingFuture<Purchase> purchaseFuture(String sku, String itemType, String extraData) {
+        final BillingFuture<Purchase> future = new BillingFuture<Purchase>();
+        launchPurchaseFlow(sku, itemType, new OnIabPurchaseFinishedListener() {
+            public void onIabPurchaseFinished(IabResult result, Purchase info) {
+                future.complete(result, info);
+            }
+        }, extraData);
+        return future;
+    }
+
     public void launchPurchaseFlow(String sku, OnIabPurchaseFinishedListener listener,
                                    String extraData) {
         launchPurchaseFlow(sku, ITEM_TYPE_INAPP, listener, extraData);
@@ -381,15 +602,53 @@ public class BillingHelper {
      * @param extraData Extra data (developer payload), which will be returned with the purchase data
      *                  when the purchase completes. This extra data will be permanently bound to that purchase
      *                  and will always be returned when the purchase is queried.
+     *                  <p>
+     *                  The purchase flow runs alone: if other operations are running, it starts
+     *                  once they are done, and operations started after it wait for it to finish.
      */
-    public void launchPurchaseFlow(String sku, String itemType,
-                                   OnIabPurchaseFinishedListener listener, String extraData) {
+    public void launchPurchaseFlow(final String sku, final String itemType,
+                                   final OnIabPurchaseFinishedListener listener, final String extraData) {
         checkNotDisposed();
         checkSetupDone("launchPurchaseFlow");
         if (billingLauncher == null) {
             throw new IllegalStateException("billingLauncher can`t be null.");
         }
-        iabConnection.launchPurchaseFlow(mContext, billingLauncher, sku, itemType, listener, extraData);
+        final Handler handler = new Handler(Looper.getMainLooper());
+        mOperations.runExclusive("launchPurchaseFlow", new OperationScheduler.Operation() {
+            public void run(final Runnable done) {
+                // may be started by a background operation finishing; the flow has to start on main
+                handler.post(new Runnable() {
+                    public void run() {
+                        if (mDisposed || billingLauncher == null) {
+                            done.run();
+                            return;
+                        }
+                        PurchaseFlow flow = new PurchaseFlow(handler, listener, done);
+                        mPurchaseFlow = flow;
+                        try {
+                            iabConnection.launchPurchaseFlow(mContext, billingLauncher, sku, itemType,
+                                    flow, extraData);
+                        } catch (RuntimeException ex) {
+                            // nobody up the main looper could catch it, so it goes to the listener
+                            logger.logError("Failed to launch purchase flow: " + ex);
+                            flow.onIabPurchaseFinished(new IabResult(IABHELPER_UNKNOWN_ERROR,
+                                    "Failed to launch purchase flow: " + ex.getMessage()), null);
+                        }
+                    }
+                });
+            }
+
+            public void cancel() {
+                handler.post(new Runnable() {
+                    public void run() {
+                        if (listener != null) {
+                            listener.onIabPurchaseFinished(new IabResult(IABHELPER_CANCELLED,
+                                    "IAB helper was disposed of."), null);
+                        }
+                    }
+                });
+            }
+        });
     }
 
     public Inventory queryInventory(boolean querySkuDetails, List<String> moreSkus) throws IabException {
@@ -398,8 +657,9 @@ public class BillingHelper {
 
     /**
      * Queries the inventory. This will query all owned items from the server, as well as
-     * information on additional skus, if specified. This method may block or take long to execute.
-     * Do not call from a UI thread.
+     * information on additional skus, if specified. Subscriptions are queried as well if they are
+     * supported, at the same time as the in-app items when the connection allows concurrent requests.
+     * This method may block or take long to execute. Do not call from a UI thread.
      *
      * @param querySkuDetails if true, SKU details (price, description, etc) will be queried as well
      *                        as purchase information.
@@ -414,21 +674,54 @@ public class BillingHelper {
         checkNotDisposed();
         checkSetupDone("queryInventory");
 
+        final boolean querySubs = iabConnection.mSubscriptionsSupported;
+        if (!querySubs || !iabConnection.supportsConcurrentRequests(IAB.REQUEST_PURCHASES)
+                || querySkuDetails && !iabConnection.supportsConcurrentRequests(IAB.REQUEST_SKU_DETAILS)) {
+            // Collect everything first and publish it as one snapshot
+            InventorySnapshot.Builder inv = new InventorySnapshot.Builder();
+            queryItemType(inv, ITEM_TYPE_INAPP, querySkuDetails, moreItemSkus);
+            if (querySubs) {
+                queryItemType(inv, ITEM_TYPE_SUBS, querySkuDetails, moreSubsSkus);
+            }
+            return new Inventory(inv.build());
+        }
+
+        // Both item types at once, each into its own builder; merged once both are done
+        final String[] itemTypes = {ITEM_TYPE_INAPP, ITEM_TYPE_SUBS};
+        final InventorySnapshot[] parts = new InventorySnapshot[itemTypes.length];
+        final IabException[] failures = new IabException[itemTypes.length];
+        ParallelBatch.run(mExecutor, itemTypes.length, itemTypes.length, index -> {
+            try {
+                InventorySnapshot.Builder part = new InventorySnapshot.Builder();
+                List<String> moreSkus = index == 0 ? moreItemSkus : moreSubsSkus;
+                queryItemType(part, itemTypes[index], querySkuDetails, moreSkus);
+                parts[index] = part.build();
+            } catch (IabException e) {
+                failures[index] = e;
+            }
+        });
+        for (IabException failure : failures) {
+            if (failure != null) {
+                throw failure;
+            }
+        }
+        return new Inventory(new InventorySnapshot.Builder(parts[0]).addAll(parts[1]).build());
+    }
+
+    // Queries the purchases and, if asked to, the SKU details of one item type into inv
+    private void queryItemType(InventorySnapshot.Builder inv, String itemType, boolean querySkuDetails,
+                               List<String> moreSkus) throws IabException {
+        boolean subs = ITEM_TYPE_SUBS.equals(itemType);
         try {
-            Inventory inv = new Inventory();
-            int r = queryPurchases(inv, ITEM_TYPE_INAPP);
+            int r = queryPurchases(inv, itemType);
             if (r != BILLING_RESPONSE_RESULT_OK) {
-                throw new IabException(r, "Error refreshing inventory (querying owned items).");
+                throw new IabException(r, subs ? "Error refreshing inventory (querying owned subscriptions)."
+                        : "Error refreshing inventory (querying owned items).");
             }
 
             if (querySkuDetails) {
-                r = querySkuDetails(ITEM_TYPE_INAPP, inv, moreItemSkus);
-                if (r != BILLING_RESPONSE_RESULT_OK) {
-                    throw new IabException(r, "Error refreshing inventory (querying prices of items).");
-                }
+                querySkuDetails(itemType, inv, moreSkus);
             }
-
-            return inv;
         } catch (RemoteException e) {
             throw new IabException(IABHELPER_REMOTE_EXCEPTION, "Remote exception while refreshing inventory.",
                     e);
@@ -443,6 +736,12 @@ public class BillingHelper {
      * query as described in {@link #queryInventory}, but will do so asynchronously
      * and call back the specified listener upon completion. This method is safe to
      * call from a UI thread.
+     * <p>
+     * Only one inventory query runs at a time. A call made while one is running gets the
+     * result of the running query if that asks for at least as much; otherwise it is
+     * merged into the next query, which starts as soon as the running one is done and
+     * covers everything asked for in the meantime. Inventory queries may overlap with
+     * consumptions, but not with a purchase flow.
      *
      * @param querySkuDetails as in {@link #queryInventory}
      * @param moreSkus        as in {@link #queryInventory}
@@ -452,32 +751,129 @@ public class BillingHelper {
                                     final List<String> moreSkus,
                                     final QueryInventoryFinishedListener listener) {
         final Handler handler = new Handler();
+        queryInventoryFuture(querySkuDetails, moreSkus).addListener(new BillingFuture.Listener<Inventory>() {
+            public void onComplete(final IabResult result, final Inventory inv) {
+                if (!mDisposed && listener != null) {
+                    handler.post(new Runnable() {
+                        public void run() {
+                            listener.onQueryInventoryFinished(result, inv);
+                        }
+                    });
+                }
+            }
+        });
+    }
+
+    /**
+     * Future-based variant of {@link #queryInventoryAsync(boolean, List, QueryInventoryFinishedListener)}.
+     * The future completes on a background thread.
+     */
+    public BillingFuture<Inventory> queryInventoryFuture(boolean querySkuDetails, List<String> moreSkus) {
         checkNotDisposed();
         checkSetupDone("queryInventory");
-        iabConnection.flagStartAsync("refresh inventory");
-        (new Thread(new Runnable() {
+        BillingFuture<Inventory> future = new BillingFuture<Inventory>();
+        InventoryQuery start = null;
+        synchronized (mInventoryQueryLock) {
+            if (mRunningQuery == null) {
+                start = mRunningQuery = new InventoryQuery();
+                start.widen(querySkuDetails, moreSkus);
+                start.mFutures.add(future);
+            } else if (mRunningQuery.covers(querySkuDetails, moreSkus)) {
+                logger.logDebug("Joining the inventory query in progress.");
+                mRunningQuery.mFutures.add(future);
+            } else {
+                logger.logDebug("Inventory query in progress; queuing a wider one.");
+                if (mNextQuery == null) {
+                    mNextQuery = new InventoryQuery();
+                }
+                mNextQuery.widen(querySkuDetails, moreSkus);
+                mNextQuery.mFutures.add(future);
+            }
+        }
+        if (start != null) {
+            runInventoryQuery(start);
+        }
+        return future;
+    }
+
+    private void runInventoryQuery(final InventoryQuery query) {
+        runShared("refresh inventory", new OperationScheduler.Operation() {
+            public void run(Runnable done) {
+                finishInventoryQuery(query, done);
+            }
+
+            public void cancel() {
+                // only on dispose, so the wider query waiting behind this one won't run either
+                InventoryQuery next;
+                synchronized (mInventoryQueryLock) {
+                    next = mNextQuery;
+                    mRunningQuery = mNextQuery = null;
+                }
+                IabResult result = new IabResult(IABHELPER_CANCELLED, "IAB helper was disposed of.");
+                completeInventoryQuery(query, result, null);
+                if (next != null) {
+                    completeInventoryQuery(next, result, null);
+                }
+            }
+        });
+    }
+
+    private void finishInventoryQuery(final InventoryQuery query, final Runnable done) {
+        mExecutor.execute(new Runnable() {
             public void run() {
-                IabResult result = new IabResult(BILLING_RESPONSE_RESULT_OK, "Inventory refresh successful.");
+                IabResult result;
                 Inventory inv = null;
                 try {
-                    inv = queryInventory(querySkuDetails, moreSkus);
+                    inv = queryInventory(query.mQuerySkuDetails, new ArrayList<String>(query.mMoreSkus));
+                    result = new IabResult(BILLING_RESPONSE_RESULT_OK, "Inventory refresh successful.");
                 } catch (IabException ex) {
                     result = ex.getResult();
+                } catch (RuntimeException ex) {
+                    // disposed of in the meantime, or an answer we could not handle
+                    result = new IabResult(IABHELPER_UNKNOWN_ERROR, ex.getMessage());
+                } finally {
+                    try {
+                        done.run();
+                    } finally {
+                        startNextInventoryQuery();
+                    }
                 }
 
-                iabConnection.flagEndAsync();
+                completeInventoryQuery(query, result, inv);
+            }
+        });
+    }
 
-                final IabResult result_f = result;
-                final Inventory inv_f = inv;
-                if (!mDisposed && listener != null) {
-                    handler.post(new Runnable() {
-                        public void run() {
-                            listener.onQueryInventoryFinished(result_f, inv_f);
-                        }
-                    });
+    // Nobody attaches to a query once it is no longer the running one
+    private void completeInventoryQuery(InventoryQuery query, IabResult result, Inventory inv) {
+        RuntimeException failure = null;
+        for (BillingFuture<Inventory> future : query.mFutures) {
+            try {
+                // every caller gets its own Inventory, backed by the same snapshot
+                future.complete(result, inv == null ? null : new Inventory(inv.getSnapshot()));
+            } catch (RuntimeException e) {
+                // one caller's failing listener must not keep the others waiting
+                logger.logError("Inventory listener failed: " + e);
+                if (failure == null) {
+                    failure = e;
                 }
             }
-        })).start();
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    // Hands the running slot to the queued query, or frees it when nothing is queued
+    private void startNextInventoryQuery() {
+        InventoryQuery next;
+        synchronized (mInventoryQueryLock) {
+            next = mRunningQuery = mNextQuery;
+            mNextQuery = null;
+        }
+        if (next != null) {
+            runInventoryQuery(next);
+        }
     }
 
     public void queryInventoryAsync(QueryInventoryFinishedListener listener) {
@@ -527,6 +923,8 @@ public class BillingHelper {
 
     /**
      * Same as {@link #consumeAsync(Purchase, OnConsumeFinishedListener)}, but for multiple items at once.
+     * The items are consumed concurrently, see {@link #setConsumeParallelism}; the results are in
+     * the same order as the purchases.
      *
      * @param purchases The list of PurchaseInfo objects representing the purchases to consume.
      * @param listener  The listener to notify when the consumption operation finishes.
@@ -537,6 +935,61 @@ public class BillingHelper {
         consumeAsyncInternal(purchases, null, listener);
     }
 
+    /**
+     * Future-based variant of {@link #consumeAsync(Purchase, OnConsumeFinishedListener)}. The
+     * future completes on a background thread with the consumed purchase, or fails with the
+     * result of the consumption. Cancelling it before the consumption starts skips it.
+     */
+    public BillingFuture<Purchase> consumeFuture(final Purchase purchase) {
+        checkNotDisposed();
+        checkSetupDone("consume");
+        List<Purchase> purchases = new ArrayList<Purchase>();
+        purchases.add(purchase);
+        final BillingFuture<List<IabResult>> consumed = consumeFutureInternal(purchases);
+        BillingFuture<Purchase> future = consumed.then(new BillingFuture.Transform<List<IabResult>, Purchase>() {
+            public Purchase apply(List<IabResult> results) throws IabException {
+                if (results.get(0).isFailure()) {
+                    throw new IabException(results.get(0));
+                }
+                return purchase;
+            }
+        });
+        cancelTogether(future, consumed);
+        return future;
+    }
+
+    /**
+     * Future-based variant of {@link #consumeAsync(List, OnConsumeMultiFinishedListener)}. The
+     * future completes on a background thread with the result of each consumption, in the
+     * order of the purchases. Cancelling it before the consumptions start skips them.
+     */
+    public BillingFuture<List<IabResult>> consumeFuture(List<Purchase> purchases) {
+        checkNotDisposed();
+        checkSetupDone("consume");
+        return consumeFutureInternal(purchases);
+    }
+
+    // Cancels source when derived is cancelled
+    private static void cancelTogether(BillingFuture<?> derived, final BillingFuture<?> source) {
+        derived.addListener(new BillingFuture.Listener<Object>() {
+            public void onComplete(IabResult result, Object value) {
+                if (result.getResponse() == IABHELPER_CANCELLED) {
+                    source.cancel();
+                }
+            }
+        });
+    }
+
+    // Runs an operation that may overlap with others if the connection allows concurrent
+    // requests; otherwise it runs alone, like a purchase.
+    private void runShared(String name, OperationScheduler.Operation operation) {
+        if (iabConnection != null && iabConnection.supportsConcurrentRequests()) {
+            mOperations.runShared(name, operation);
+        } else {
+            mOperations.runExclusive(name, operation);
+        }
+    }
+
     // Checks that setup was done; if not, throws an exception.
     private void checkSetupDone(String operation) {
         if (iabConnection == null || !iabConnection.mSetupDone) {
@@ -546,11 +999,10 @@ public class BillingHelper {
         }
     }
 
-    int queryPurchases(Inventory inv, String itemType) throws JSONException, RemoteException {
+    int queryPurchases(InventorySnapshot.Builder inv, String itemType) throws JSONException, RemoteException {
         // Query purchases
         logger.logDebug("Querying owned items, item type: " + itemType);
         logger.logDebug("Package name: " + mContext.getPackageName());
-        boolean verificationFailed = false;
         String continueToken = null;
 
         do {
@@ -578,102 +1030,182 @@ public class BillingHelper {
             ArrayList<String> signatureList = ownedItems.getStringArrayList(
                     RESPONSE_INAPP_SIGNATURE_LIST);
 
+            // Purchases are created lazily: only the SKU and token are read now, the other
+            // fields once the app actually reads one of them.
+            List<Purchase> page = new ArrayList<Purchase>(purchaseDataList.size());
             for (int i = 0; i < purchaseDataList.size(); ++i) {
                 String purchaseData = purchaseDataList.get(i);
                 String signature = signatureList.get(i);
-                String sku = ownedSkus.get(i);
-                logger.logDebug("Sku is owned: " + sku);
-                Purchase purchase = new Purchase(itemType, purchaseData, signature);
+                logger.logDebug("Sku is owned: " + ownedSkus.get(i));
+                Purchase purchase = Purchase.createLazy(itemType, purchaseData, signature);
 
                 if (TextUtils.isEmpty(purchase.getToken())) {
                     logger.logWarn("BUG: empty/null token!");
                     logger.logDebug("Purchase data: " + purchaseData);
                 }
+                page.add(purchase);
+            }
 
+            PurchaseVerifier verifier = mVerifier;
+            if (verifier == null) {
                 // Record ownership and token
-                inv.addPurchase(purchase);
+                for (Purchase purchase : page) {
+                    inv.addPurchase(purchase);
+                }
+            } else {
+                verifyPurchases(verifier, inv, page);
             }
 
             continueToken = ownedItems.getString(INAPP_CONTINUATION_TOKEN);
             logger.logDebug("Continuation token: " + continueToken);
         } while (!TextUtils.isEmpty(continueToken));
 
-        return verificationFailed ? IABHELPER_VERIFICATION_FAILED : BILLING_RESPONSE_RESULT_OK;
+        if (mSignatureMemo != null) {
+            mSignatureMemo.flush();
+        }
+        return BILLING_RESPONSE_RESULT_OK;
+    }
+
+    // Verifies one page of purchases on the worker pool. Verified purchases are recorded
+    // as owned; the others only end up in the inventory's verification failures.
+    private void verifyPurchases(final PurchaseVerifier verifier, InventorySnapshot.Builder inv,
+                                 final List<Purchase> page) {
+        final VerifiedSignatureMemo memo = mSignatureMemo;
+        final boolean[] verified = new boolean[page.size()];
+        ParallelBatch.run(mExecutor, page.size(), VERIFY_PARALLELISM,
+                index -> verified[index] = page.get(index).verifySignature(verifier, memo));
+
+        for (int i = 0; i < verified.length; ++i) {
+            Purchase purchase = page.get(i);
+            if (verified[i]) {
+                inv.addPurchase(purchase);
+            } else {
+                logger.logWarn("Purchase signature verification FAILED for sku " + purchase.getSku());
+                inv.addVerificationFailure(purchase);
+            }
+        }
+    }
+
+    // The executor all background work of this helper runs on
+    Executor getExecutor() {
+        return mExecutor;
     }
 
-    int querySkuDetails(String itemType, Inventory inv, List<String> moreSkus)
-            throws RemoteException, JSONException {
+    // Queries the details of the owned SKUs of itemType and of moreSkus, in chunks of at most
+    // mSkuDetailsChunkSize SKUs. Details still in the cache are not queried again. A chunk that
+    // fails is recorded as a failure of its SKUs in inv, the other chunks still count.
+    void querySkuDetails(final String itemType, final InventorySnapshot.Builder inv, List<String> moreSkus) {
         logger.logDebug("Querying SKU details.");
-        ArrayList<String> skuList = new ArrayList<String>();
-        skuList.addAll(inv.getAllOwnedSkus(itemType));
+        Set<String> skus = new LinkedHashSet<String>(inv.getOwnedSkus(itemType));
         if (moreSkus != null) {
-            for (String sku : moreSkus) {
-                if (!skuList.contains(sku)) {
-                    skuList.add(sku);
+            skus.addAll(moreSkus);
+        }
+        ArrayList<String> skuList = new ArrayList<String>(skus);
+
+        final SkuDetailsCache cache = mSkuDetailsCache;
+        if (cache != null) {
+            long now = SystemClock.elapsedRealtime();
+            for (Iterator<String> it = skuList.iterator(); it.hasNext(); ) {
+                SkuDetails cached = cache.get(itemType, it.next(), now);
+                if (cached != null) {
+                    inv.addSkuDetails(cached);
+                    it.remove();
                 }
             }
         }
 
         if (skuList.size() == 0) {
             logger.logDebug("queryPrices: nothing to do because there are no SKUs.");
-            return BILLING_RESPONSE_RESULT_OK;
+            return;
+        }
+
+        final List<SkuDetails> fresh = new ArrayList<SkuDetails>();
+        int chunkSize = mSkuDetailsChunkSize;
+        final List<ArrayList<String>> chunks = new ArrayList<ArrayList<String>>();
+        for (int i = 0; i < skuList.size(); i += chunkSize) {
+            chunks.add(new ArrayList<String>(skuList.subList(i, Math.min(skuList.size(), i + chunkSize))));
+        }
+        int parallelism = iabConnection.supportsConcurrentRequests(IAB.REQUEST_SKU_DETAILS)
+                ? mSkuDetailsMaxInFlight : 1;
+        ParallelBatch.run(mExecutor, chunks.size(), parallelism,
+                index -> querySkuDetailsChunk(itemType, inv, chunks.get(index), fresh));
+        if (cache != null && cache.update(itemType, fresh, SystemClock.elapsedRealtime())) {
+            logger.logDebug("SKU details of type " + itemType + " changed; dropped the cached ones.");
         }
+    }
 
+    // Adds the details of one chunk to inv, and to fresh
+    private void querySkuDetailsChunk(String itemType, InventorySnapshot.Builder inv, ArrayList<String> skuList,
+                                      List<SkuDetails> fresh) {
         Bundle querySkus = new Bundle();
         querySkus.putStringArrayList(GET_SKU_DETAILS_ITEM_LIST, skuList);
 
-        Bundle skuDetails = iabConnection.getSkuDetails(3, mContext.getPackageName(), itemType, querySkus);
-        if (!skuDetails.containsKey(RESPONSE_GET_SKU_DETAILS_LIST)) {
-            int responseCodeFromBundle = iabConnection.getResponseCodeFromBundle(skuDetails);
-            if (responseCodeFromBundle != BILLING_RESPONSE_RESULT_OK) {
-                logger.logDebug("getSkuDetails() failed: " + getResponseDesc(responseCodeFromBundle));
-                return responseCodeFromBundle;
+        IabResult failure;
+        try {
+            Bundle skuDetails = iabConnection.getSkuDetails(3, mContext.getPackageName(), itemType, querySkus);
+            if (!skuDetails.containsKey(RESPONSE_GET_SKU_DETAILS_LIST)) {
+                int responseCodeFromBundle = iabConnection.getResponseCodeFromBundle(skuDetails);
+                if (responseCodeFromBundle != BILLING_RESPONSE_RESULT_OK) {
+                    logger.logDebug("getSkuDetails() failed: " + getResponseDesc(responseCodeFromBundle));
+                    failure = new IabResult(responseCodeFromBundle, "Error querying SKU details.");
+                } else {
+                    logger.logError("getSkuDetails() returned a bundle with neither an error nor a detail list.");
+                    failure = new IabResult(IABHELPER_BAD_RESPONSE, "Error querying SKU details.");
+                }
             } else {
-                logger.logError("getSkuDetails() returned a bundle with neither an error nor a detail list.");
-                return IABHELPER_BAD_RESPONSE;
+                ArrayList<String> responseList = skuDetails.getStringArrayList(
+                        RESPONSE_GET_SKU_DETAILS_LIST);
+
+                List<SkuDetails> details = new ArrayList<SkuDetails>(responseList.size());
+                for (String thisResponse : responseList) {
+                    SkuDetails d = new SkuDetails(itemType, thisResponse);
+                    logger.logDebug("Got sku details: " + d);
+                    details.add(d);
+                }
+                // chunks finish on different threads
+                synchronized (inv) {
+                    for (SkuDetails d : details) {
+                        inv.addSkuDetails(d);
+                    }
+                    fresh.addAll(details);
+                }
+                return;
             }
+        } catch (RemoteException e) {
+            logger.logWarn("Remote exception while querying SKU details: " + e);
+            failure = new IabResult(IABHELPER_REMOTE_EXCEPTION, "Remote exception while querying SKU details.");
+        } catch (JSONException e) {
+            logger.logError("Error parsing SKU details: " + e);
+            failure = new IabResult(IABHELPER_BAD_RESPONSE, "Error parsing SKU details.");
         }
-
-        ArrayList<String> responseList = skuDetails.getStringArrayList(
-                RESPONSE_GET_SKU_DETAILS_LIST);
-
-        for (String thisResponse : responseList) {
-            SkuDetails d = new SkuDetails(itemType, thisResponse);
-            logger.logDebug("Got sku details: " + d);
-            inv.addSkuDetails(d);
+        synchronized (inv) {
+            for (String sku : skuList) {
+                inv.addSkuDetailsFailure(sku, failure);
+            }
         }
-
-
-        return BILLING_RESPONSE_RESULT_OK;
     }
 
     void consumeAsyncInternal(final List<Purchase> purchases,
                               final OnConsumeFinishedListener singleListener,
                               final OnConsumeMultiFinishedListener multiListener) {
         final Handler handler = new Handler();
-        iabConnection.flagStartAsync("consume");
-        (new Thread(new Runnable() {
-            public void run() {
-                final List<IabResult> results = new ArrayList<IabResult>();
-                for (Purchase purchase : purchases) {
-                    try {
-                        consume(purchase);
-                        results.add(new IabResult(BILLING_RESPONSE_RESULT_OK,
-                                "Successful consume of sku " + purchase.getSku()));
-                    } catch (IabException ex) {
-                        results.add(ex.getResult());
-                    }
+        consumeFutureInternal(purchases).addListener(new BillingFuture.Listener<List<IabResult>>() {
+            public void onComplete(IabResult result, List<IabResult> consumed) {
+                // cancelled means the helper was disposed of in the meantime
+                if (result.getResponse() == IABHELPER_CANCELLED || mDisposed) {
+                    return;
                 }
-
-                iabConnection.flagEndAsync();
-                if (!mDisposed && singleListener != null) {
+                // any other failure is reported for every purchase
+                final List<IabResult> results = result.isFailure()
+                        ? Collections.nCopies(purchases.size(), result) : consumed;
+                if (singleListener != null) {
                     handler.post(new Runnable() {
                         public void run() {
                             singleListener.onConsumeFinished(purchases.get(0), results.get(0));
                         }
                     });
                 }
-                if (!mDisposed && multiListener != null) {
+                if (multiListener != null) {
                     handler.post(new Runnable() {
                         public void run() {
                             multiListener.onConsumeMultiFinished(purchases, results);
@@ -681,7 +1213,300 @@ public class BillingHelper {
                     });
                 }
             }
-        })).start();
+        });
+    }
+
+    private BillingFuture<List<IabResult>> consumeFutureInternal(final List<Purchase> purchases) {
+        final BillingFuture<List<IabResult>> future = new BillingFuture<List<IabResult>>();
+        runShared("consume", new OperationScheduler.Operation() {
+            public void run(Runnable done) {
+                if (future.isDone()) {
+                    // cancelled while it was queued
+                    done.run();
+                    return;
+                }
+                consumeInBackground(purchases, future, done);
+            }
+
+            public void cancel() {
+                future.cancel();
+            }
+        });
+        return future;
+    }
+
+    private void consumeInBackground(final List<Purchase> purchases,
+                                     final BillingFuture<List<IabResult>> future,
+                                     final Runnable done) {
+        mExecutor.execute(new Runnable() {
+            public void run() {
+                final IabResult[] consumed = new IabResult[purchases.size()];
+                try {
+                    int parallelism = iabConnection.supportsConcurrentRequests(IAB.REQUEST_CONSUME)
+                            ? mConsumeParallelism : 1;
+                    ParallelBatch.run(mExecutor, consumed.length, parallelism, index -> {
+                        Purchase purchase = purchases.get(index);
+                        try {
+                            consume(purchase);
+                            consumed[index] = new IabResult(BILLING_RESPONSE_RESULT_OK,
+                                    "Successful consume of sku " + purchase.getSku());
+                        } catch (IabException ex) {
+                            consumed[index] = ex.getResult();
+                        }
+                    });
+                } catch (RuntimeException ex) {
+                    // disposed of in the meantime, or an answer we could not handle
+                    future.fail(new IabResult(IABHELPER_UNKNOWN_ERROR, ex.getMessage()));
+                    return;
+                } finally {
+                    done.run();
+                }
+                future.complete(Arrays.asList(consumed));
+            }
+        });
+    }
+
+    /**
+     * Creates a {@link BillingHelper} that runs its background work on the app's own executor.
+     */
+    public static class Builder {
+        private final ActivityResultRegistry mRegistry;
+        private final Context mContext;
+        private Executor mExecutor;
+        private int mMaxParallelism = DEFAULT_MAX_PARALLELISM;
+
+        public Builder(ActivityResultRegistry registry, Context ctx) {
+            mRegistry = registry;
+            mContext = ctx;
+        }
+
+        /**
+         * Sets the executor to run background work on, instead of the library's own pool.
+         */
+        public Builder setExecutor(Executor executor) {
+            mExecutor = executor;
+            return this;
+        }
+
+        /**
+         * Sets how many background tasks may run at the same time.
+         */
+        public Builder setMaxParallelism(int maxParallelism) {
+            if (maxParallelism < 1) {
+                throw new IllegalArgumentException("maxParallelism must be positive.");
+            }
+            mMaxParallelism = maxParallelism;
+            return this;
+        }
+
+        public BillingHelper build() {
+            return new BillingHelper(mRegistry, mContext, mExecutor, mMaxParallelism);
+        }
+    }
+
+    // A purchase flow that holds the exclusive slot until its result arrives, or until it is
+    // abandoned because that result can't arrive any more
+    private class PurchaseFlow implements OnIabPurchaseFinishedListener {
+        private final Handler mHandler;
+        private final OnIabPurchaseFinishedListener mListener;
+        private final Runnable mDone;
+        private final AtomicBoolean mFinished = new AtomicBoolean();
+
+        PurchaseFlow(Handler handler, OnIabPurchaseFinishedListener listener, Runnable done) {
+            mHandler = handler;
+            mListener = listener;
+            mDone = done;
+        }
+
+        public void onIabPurchaseFinished(IabResult result, Purchase info) {
+            if (finish() && mListener != null) {
+                mListener.onIabPurchaseFinished(result, info);
+            }
+        }
+
+        void abandon() {
+            if (finish() && mListener != null) {
+                mHandler.post(new Runnable() {
+                    public void run() {
+                        mListener.onIabPurchaseFinished(new IabResult(IABHELPER_CANCELLED,
+                                "Purchase flow was abandoned."), null);
+                    }
+                });
+            }
+        }
+
+        // Gives the slot back; true the first time only
+        boolean finish() {
+            if (!mFinished.compareAndSet(false, true)) {
+                return false;
+            }
+            if (mPurchaseFlow == this) {
+                mPurchaseFlow = null;
+            }
+            mDone.run();
+            return true;
+        }
+    }
+
+    /**
+     * Connects through the service and through broadcasts at the same time, and commits to the
+     * first connection that reports billing as supported. Runs on the UI thread, where all
+     * connection callbacks arrive.
+     */
+    private class SetupRace {
+        final OnIabSetupFinishedListener mListener;
+        final Handler mHandler = new Handler(Looper.getMainLooper());
+        ServiceIAB mService;
+        BroadcastIAB mBroadcast;
+        // Connections that were disposed of, because they dropped out of the race or lost it
+        final List<IAB> mOut = new ArrayList<IAB>();
+        boolean mFinished = false;
+        // Why the last connection that failed the billing support check did so
+        IabResult mFailure;
+
+        SetupRace(OnIabSetupFinishedListener listener) {
+            mListener = listener;
+        }
+
+        void start() {
+            mService = new ServiceIAB(logger, getMarketId(), getBindAddress());
+            mService.setExecutor(mExecutor);
+            mBroadcast = new BroadcastIAB(mContext, logger, getMarketId(), getBindAddress());
+            mBroadcast.setDeadlines(mDeadlines);
+
+            mService.connect(mContext, new OnServiceConnectListener() {
+                @Override
+                public void connected() {
+                    checkSupported(mService);
+                }
+
+                @Override
+                public void couldNotConnect() {
+                    lost(mService, null);
+                }
+            });
+            boolean canConnectToReceiver = mBroadcast.connect(mContext, new OnBroadCastConnectListener() {
+                @Override
+                public void connected() {
+                    checkSupported(mBroadcast);
+                }
+
+                @Override
+                public void couldNotConnect() {
+                    lost(mBroadcast, null);
+                }
+            });
+            logger.logDebug("canConnectToReceiver = " + canConnectToReceiver);
+            if (!canConnectToReceiver) {
+                lost(mBroadcast, null);
+            }
+        }
+
+        void checkSupported(final IAB connection) {
+            if (mFinished) {
+                return;
+            }
+            connection.isBillingSupported(3, mContext.getPackageName(), new BillingSupportCommunication() {
+                @Override
+                public void onBillingSupportResult(int response) {
+                    if (response == BILLING_RESPONSE_RESULT_OK) {
+                        supported(connection);
+                    } else {
+                        lost(connection, new IabResult(response, "Error checking for billing v3 support."));
+                    }
+                }
+
+                @Override
+                public void remoteExceptionHappened(IabResult result) {
+                    lost(connection, result);
+                }
+            });
+        }
+
+        void supported(final IAB connection) {
+            if (mFinished) {
+                return;
+            }
+            if (connection == mService) {
+                commit(mService);
+            } else {
+                // give a service answer that is already queued the chance to win the tie
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (!mFinished) {
+                            commit(connection);
+                        }
+                    }
+                });
+            }
+        }
+
+        void lost(IAB connection, IabResult failure) {
+            if (mFinished || !drop(connection)) {
+                return;
+            }
+            logger.logDebug("Setup through " + connection.getClass().getSimpleName() + " failed.");
+            if (failure != null) {
+                mFailure = failure;
+            }
+            if (mOut.size() == 2) {
+                finish(null, mFailure != null ? mFailure : new IabResult(BILLING_RESPONSE_RESULT_BILLING_UNAVAILABLE,
+                        "Billing service unavailable on device."));
+            }
+        }
+
+        void commit(IAB winner) {
+            logger.logDebug("Setup race won by " + winner.getClass().getSimpleName() + ".");
+            drop(winner == mService ? mBroadcast : mService);
+            finish(winner, new IabResult(BILLING_RESPONSE_RESULT_OK, "Setup successful."));
+        }
+
+        void finish(IAB connection, IabResult result) {
+            mFinished = true;
+            mRunningSetupRace = null;
+            iabConnection = connection;
+            if (mListener != null) {
+                mListener.onIabSetupFinished(result);
+            }
+        }
+
+        void cancel() {
+            mFinished = true;
+            drop(mService);
+            drop(mBroadcast);
+        }
+
+        // Disposes of a connection unless that already happened; true if it did so now
+        boolean drop(IAB connection) {
+            if (connection == null || mOut.contains(connection)) {
+                return false;
+            }
+            mOut.add(connection);
+            connection.dispose(mContext);
+            return true;
+        }
+    }
+
+    // An inventory query and everyone waiting for its result
+    private static class InventoryQuery {
+        boolean mQuerySkuDetails;
+        final Set<String> mMoreSkus = new LinkedHashSet<String>();
+        final List<BillingFuture<Inventory>> mFutures = new ArrayList<BillingFuture<Inventory>>();
+
+        // Whether this query returns everything a query with these parameters would
+        boolean covers(boolean querySkuDetails, List<String> moreSkus) {
+            return !querySkuDetails || mQuerySkuDetails && (moreSkus == null || mMoreSkus.containsAll(moreSkus));
+        }
+
+        void widen(boolean querySkuDetails, List<String> moreSkus) {
+            if (querySkuDetails) {
+                mQuerySkuDetails = true;
+                if (moreSkus != null) {
+                    mMoreSkus.addAll(moreSkus);
+                }
+            }
+        }
     }
 
     /**
@@ -2,4 +2,6 @@ package com.farasource.billing.communication;
 
 public interface OnBroadCastConnectListener {
 	void connected();
+
+	void couldNotConnect();
 }
@@ -0,0 +1,21 @@
+package com.farasource.billing.communication;
+
+import com.farasource.billing.util.InventorySnapshot;
+import com.farasource.billing.util.Purchase;
+
+import java.util.List;
+
+public interface OnInventoryChangedListener {
+
+    /**
+     * Called on the main thread after an inventory refresh that changed the owned
+     * purchases. The first refresh reports every owned purchase as added.
+     *
+     * @param added     purchases that are new since the previous refresh
+     * @param removed   purchases that are gone since the previous refresh
+     * @param changed   purchases whose data changed, e.g. their purchase state
+     * @param inventory the refreshed inventory
+     */
+    void onInventoryChanged(List<Purchase> added, List<Purchase> removed, List<Purchase> changed,
+                            InventorySnapshot inventory);
+}
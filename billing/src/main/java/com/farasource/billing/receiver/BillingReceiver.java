@@ -4,45 +4,106 @@ import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.HandlerThread;
 
 import com.farasource.billing.communication.BillingReceiverCommunicator;
 
-import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 
+/**
+ * Receives the market's answers and hands them to the observers of their action. Answers
+ * are dispatched on a background thread, so observers must post anything that touches the
+ * UI to the main thread themselves.
+ */
 public class BillingReceiver extends BroadcastReceiver {
 
-    private static final Object observerLock = new Object();
-    private static final List<BillingReceiverCommunicator> observers = new ArrayList<>();
+    private static final String ANSWER_SUFFIX = ".iab";
+
+    // Observers of every answer
+    private static final List<BillingReceiverCommunicator> observers =
+            new CopyOnWriteArrayList<BillingReceiverCommunicator>();
+    // Observers of one answer, by its full action (the forwarded one, ending with .iab)
+    private static final ConcurrentHashMap<String, List<BillingReceiverCommunicator>> actionObservers =
+            new ConcurrentHashMap<String, List<BillingReceiverCommunicator>>();
+    private static Handler dispatchHandler;
 
     public static void addObserver(BillingReceiverCommunicator communicator) {
-        synchronized (observerLock) {
-            observers.add(communicator);
-        }
+        observers.add(communicator);
     }
 
     public static void removeObserver(BillingReceiverCommunicator communicator) {
-        synchronized (observerLock) {
-            observers.remove(communicator);
+        observers.remove(communicator);
+    }
+
+    /**
+     * Registers an observer for the answers with the given action only, e.g.
+     * {@code marketId + ".consume.iab"}.
+     */
+    public static void addObserver(String action, BillingReceiverCommunicator communicator) {
+        synchronized (actionObservers) {
+            List<BillingReceiverCommunicator> list = actionObservers.get(action);
+            if (list == null) {
+                list = new CopyOnWriteArrayList<BillingReceiverCommunicator>();
+                actionObservers.put(action, list);
+            }
+            list.add(communicator);
+        }
+    }
+
+    public static void removeObserver(String action, BillingReceiverCommunicator communicator) {
+        synchronized (actionObservers) {
+            List<BillingReceiverCommunicator> list = actionObservers.get(action);
+            if (list != null) {
+                list.remove(communicator);
+                if (list.isEmpty()) {
+                    actionObservers.remove(action);
+                }
+            }
         }
     }
 
     private static void notifyObservers(Intent intent) {
-        synchronized (observerLock) {
-            for (BillingReceiverCommunicator observer : observers) {
+        List<BillingReceiverCommunicator> list = actionObservers.get(intent.getAction());
+        if (list != null) {
+            for (BillingReceiverCommunicator observer : list) {
                 observer.onNewBroadcastReceived(intent);
             }
         }
+        for (BillingReceiverCommunicator observer : observers) {
+            observer.onNewBroadcastReceived(intent);
+        }
+    }
+
+    private static synchronized Handler getDispatchHandler() {
+        if (dispatchHandler == null) {
+            HandlerThread thread = new HandlerThread("billing-receiver");
+            thread.start();
+            dispatchHandler = new Handler(thread.getLooper());
+        }
+        return dispatchHandler;
     }
 
     @Override
     public void onReceive(Context context, Intent intent) {
-        Intent sendIntent = new Intent();
-        sendIntent.setAction(intent.getAction() + ".iab");
+        final Intent sendIntent = new Intent();
+        sendIntent.setAction(intent.getAction() + ANSWER_SUFFIX);
         Bundle bundle = intent.getExtras();
         if (bundle != null) {
             sendIntent.putExtras(bundle);
         }
-        notifyObservers(sendIntent);
+        final PendingResult pendingResult = goAsync();
+        getDispatchHandler().post(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    notifyObservers(sendIntent);
+                } finally {
+                    pendingResult.finish();
+                }
+            }
+        });
     }
 }
@@ -14,6 +14,8 @@
 
 package com.farasource.billing.util;
 
+import java.nio.ByteBuffer;
+
 // This code was converted from code at http://iharder.sourceforge.net/base64/
 // Lots of extraneous features were removed.
 /* The original code said:
@@ -358,66 +360,122 @@ public class Base64 {
     }
 
 
-    /* ********  D E C O D I N G   M E T H O D S  ******** */
-
+    /**
+     * Returns the number of bytes {@link #encode(byte[], int, int, byte[], boolean, byte[], int)}
+     * writes for {@code len} bytes of input.
+     *
+     * @param len       length of data to convert
+     * @param doPadding is {@code true} if the output is padded with '=' chars
+     */
+    public static int encodedLength(int len, boolean doPadding) {
+        if (doPadding) {
+            return (len + 2) / 3 * 4;
+        }
+        int rem = len % 3;
+        return len / 3 * 4 + (rem == 0 ? 0 : rem + 1);
+    }
 
     /**
-     * Decodes four bytes from array <var>source</var>
-     * and writes the resulting bytes (up to three of them)
-     * to <var>destination</var>.
-     * The source and destination arrays can be manipulated
-     * anywhere along their length by specifying
-     * <var>srcOffset</var> and <var>destOffset</var>.
-     * This method does not check to make sure your arrays
-     * are large enough to accommodate <var>srcOffset</var> + 4 for
-     * the <var>source</var> array or <var>destOffset</var> + 3 for
-     * the <var>destination</var> array.
-     * This method returns the actual number of bytes that
-     * were converted from the Base64 encoding.
+     * Encodes a byte array into Base64 notation, writing the result into
+     * <var>destination</var> at <var>destOffset</var>. No line breaks are inserted
+     * and nothing is allocated.
      *
-     * @param source      the array to convert
-     * @param srcOffset   the index where conversion begins
+     * @param source      the data to convert
      * @param destination the array to hold the conversion
      * @param destOffset  the index where output will be put
-     * @param decodabet   the decodabet for decoding Base64 content
-     * @return the number of decoded bytes converted
-     * @since 1.3
+     * @return the number of bytes written
+     * @throws IllegalArgumentException if <var>destination</var> is too small
+     */
+    public static int encode(byte[] source, byte[] destination, int destOffset) {
+        return encode(source, 0, source.length, ALPHABET, true, destination, destOffset);
+    }
+
+    /**
+     * Same as {@link #encode(byte[], byte[], int)}, for a range of the source and with
+     * an explicit alphabet and padding.
+     *
+     * @param off       offset in array where conversion should begin
+     * @param len       length of data to convert
+     * @param alphabet  the encoding alphabet
+     * @param doPadding is {@code true} to pad result with '=' chars
+     *                  if it does not fall on 3 byte boundaries
      */
-    private static int decode4to3(byte[] source, int srcOffset,
-                                  byte[] destination, int destOffset, byte[] decodabet) {
-        // Example: Dk==
-        if (source[srcOffset + 2] == EQUALS_SIGN) {
-            int outBuff =
-                    ((decodabet[source[srcOffset]] << 24) >>> 6)
-                            | ((decodabet[source[srcOffset + 1]] << 24) >>> 12);
-
-            destination[destOffset] = (byte) (outBuff >>> 16);
-            return 1;
-        } else if (source[srcOffset + 3] == EQUALS_SIGN) {
-            // Example: DkL=
-            int outBuff =
-                    ((decodabet[source[srcOffset]] << 24) >>> 6)
-                            | ((decodabet[source[srcOffset + 1]] << 24) >>> 12)
-                            | ((decodabet[source[srcOffset + 2]] << 24) >>> 18);
-
-            destination[destOffset] = (byte) (outBuff >>> 16);
-            destination[destOffset + 1] = (byte) (outBuff >>> 8);
-            return 2;
+    public static int encode(byte[] source, int off, int len, byte[] alphabet, boolean doPadding,
+                             byte[] destination, int destOffset) {
+        int outLen = encodedLength(len, doPadding);
+        if (destOffset < 0 || destination.length - destOffset < outLen) {
+            throw new IllegalArgumentException("destination buffer too small");
+        }
+        encodeInto(source, off, len, alphabet, doPadding, destination, destOffset, null);
+        return outLen;
+    }
+
+    /**
+     * Same as {@link #encode(byte[], byte[], int)}, for a range of the source, writing into
+     * <var>destination</var> at its position and advancing the position.
+     *
+     * @return the number of bytes written
+     * @throws IllegalArgumentException if <var>destination</var> has too little room left
+     */
+    public static int encode(byte[] source, int off, int len, ByteBuffer destination) {
+        int outLen = encodedLength(len, true);
+        if (destination.remaining() < outLen) {
+            throw new IllegalArgumentException("destination buffer too small");
+        }
+        if (destination.hasArray()) {
+            encodeInto(source, off, len, ALPHABET, true, destination.array(),
+                    destination.arrayOffset() + destination.position(), null);
+            destination.position(destination.position() + outLen);
+        } else {
+            encodeInto(source, off, len, ALPHABET, true, null, 0, destination);
+        }
+        return outLen;
+    }
+
+    // Writes to either the array or the buffer; the caller has checked the capacity
+    private static void encodeInto(byte[] source, int off, int len, byte[] alphabet, boolean doPadding,
+                                   byte[] destination, int destOffset, ByteBuffer destBuffer) {
+        int e = destOffset;
+        int d = 0;
+        for (; d + 2 < len; d += 3) {
+            int inBuff =
+                    ((source[d + off] << 24) >>> 8)
+                            | ((source[d + 1 + off] << 24) >>> 16)
+                            | ((source[d + 2 + off] << 24) >>> 24);
+            e = put(destination, destBuffer, e, alphabet[(inBuff >>> 18)]);
+            e = put(destination, destBuffer, e, alphabet[(inBuff >>> 12) & 0x3f]);
+            e = put(destination, destBuffer, e, alphabet[(inBuff >>> 6) & 0x3f]);
+            e = put(destination, destBuffer, e, alphabet[(inBuff) & 0x3f]);
+        }
+
+        int rem = len - d;
+        if (rem > 0) {
+            int inBuff = ((source[d + off] << 24) >>> 8)
+                    | (rem > 1 ? ((source[d + 1 + off] << 24) >>> 16) : 0);
+            e = put(destination, destBuffer, e, alphabet[(inBuff >>> 18)]);
+            e = put(destination, destBuffer, e, alphabet[(inBuff >>> 12) & 0x3f]);
+            if (rem > 1) {
+                e = put(destination, destBuffer, e, alphabet[(inBuff >>> 6) & 0x3f]);
+            } else if (doPadding) {
+                e = put(destination, destBuffer, e, EQUALS_SIGN);
+            }
+            if (doPadding) {
+                put(destination, destBuffer, e, EQUALS_SIGN);
+            }
+        }
+    }
+
+    private static int put(byte[] destination, ByteBuffer destBuffer, int index, byte value) {
+        if (destBuffer != null) {
+            destBuffer.put(value);
         } else {
-            // Example: DkLE
-            int outBuff =
-                    ((decodabet[source[srcOffset]] << 24) >>> 6)
-                            | ((decodabet[source[srcOffset + 1]] << 24) >>> 12)
-                            | ((decodabet[source[srcOffset + 2]] << 24) >>> 18)
-                            | ((decodabet[source[srcOffset + 3]] << 24) >>> 24);
-
-            destination[destOffset] = (byte) (outBuff >> 16);
-            destination[destOffset + 1] = (byte) (outBuff >> 8);
-            destination[destOffset + 2] = (byte) (outBuff);
-            return 3;
+            destination[index] = value;
         }
-    } // end decodeToBytes
+        return index + 1;
+    }
+
 
+    /* ********  D E C O D I N G   M E T H O D S  ******** */
 
     /**
      * Decodes data from Base64 notation.
@@ -512,18 +570,110 @@ public class Base64 {
      */
     public static byte[] decode(byte[] source, int off, int len, byte[] decodabet)
             throws Base64DecoderException {
-        int len34 = len * 3 / 4;
-        byte[] outBuff = new byte[2 + len34]; // Upper limit on size of output
-        int outBuffPosn = 0;
+        byte[] outBuff = new byte[maxDecodedLength(len)]; // Upper limit on size of output
+        int outBuffPosn = decode(source, off, len, decodabet, outBuff, 0);
 
-        byte[] b4 = new byte[4];
+        byte[] out = new byte[outBuffPosn];
+        System.arraycopy(outBuff, 0, out, 0, outBuffPosn);
+        return out;
+    }
+
+    /**
+     * Returns an upper limit on the number of bytes decoded from <var>len</var>
+     * characters of Base64 content.
+     */
+    public static int maxDecodedLength(int len) {
+        return 2 + len * 3 / 4;
+    }
+
+    /**
+     * Decodes Base64 content into <var>destination</var> at <var>destOffset</var>
+     * without allocating. A destination with {@link #maxDecodedLength} bytes of room
+     * is always large enough.
+     *
+     * @param source      the Base64 encoded data
+     * @param off         the offset of where to begin decoding
+     * @param len         the length of characters to decode
+     * @param destination the array to hold the decoded data
+     * @param destOffset  the index where output will be put
+     * @return the number of bytes written
+     * @throws IllegalArgumentException if <var>destination</var> is too small
+     */
+    public static int decode(byte[] source, int off, int len, byte[] destination, int destOffset)
+            throws Base64DecoderException {
+        return decode(source, off, len, DECODABET, destination, destOffset);
+    }
+
+    /**
+     * Same as {@link #decode(byte[], int, int, byte[], int)}, using the supplied decodabet.
+     *
+     * @param decodabet the decodabet for decoding Base64 content
+     */
+    public static int decode(byte[] source, int off, int len, byte[] decodabet,
+                             byte[] destination, int destOffset) throws Base64DecoderException {
+        return decodeInto(source, null, off, len, decodabet, destination, destOffset, null);
+    }
+
+    /**
+     * Same as {@link #decode(byte[], int, int, byte[], int)}, but reads the characters
+     * of <var>source</var> directly instead of converting it to bytes first.
+     *
+     * @param source      the Base64 encoded string
+     * @param destination the array to hold the decoded data
+     * @param destOffset  the index where output will be put
+     * @return the number of bytes written
+     */
+    public static int decode(CharSequence source, byte[] destination, int destOffset)
+            throws Base64DecoderException {
+        return decodeInto(null, source, 0, source.length(), DECODABET, destination, destOffset, null);
+    }
+
+    /**
+     * Same as {@link #decode(byte[], int, int, byte[], int)}, writing into
+     * <var>destination</var> at its position and advancing the position.
+     *
+     * @return the number of bytes written
+     * @throws IllegalArgumentException if <var>destination</var> has too little room left
+     */
+    public static int decode(byte[] source, int off, int len, ByteBuffer destination)
+            throws Base64DecoderException {
+        int written;
+        if (destination.hasArray()) {
+            int start = destination.arrayOffset() + destination.position();
+            written = decodeInto(source, null, off, len, DECODABET, destination.array(), start,
+                    null, start + destination.remaining());
+            destination.position(destination.position() + written);
+        } else {
+            written = decodeInto(source, null, off, len, DECODABET, null, 0, destination);
+        }
+        return written;
+    }
+
+    private static int decodeInto(byte[] source, CharSequence chars, int off, int len, byte[] decodabet,
+                                  byte[] destination, int destOffset, ByteBuffer destBuffer)
+            throws Base64DecoderException {
+        int limit = destination != null ? destination.length : 0;
+        return decodeInto(source, chars, off, len, decodabet, destination, destOffset, destBuffer, limit);
+    }
+
+    // Decodes from either bytes or chars into either the array (up to limit) or the buffer.
+    // Full quanta are accumulated in an int, so no scratch array is needed.
+    private static int decodeInto(byte[] source, CharSequence chars, int off, int len, byte[] decodabet,
+                                  byte[] destination, int destOffset, ByteBuffer destBuffer, int limit)
+            throws Base64DecoderException {
+        int outBuffPosn = destOffset;
+
+        int quantum = 0;
         int b4Posn = 0;
-        int i = 0;
-        byte sbiCrop = 0;
-        byte sbiDecode = 0;
-        for (i = 0; i < len; i++) {
-            sbiCrop = (byte) (source[i + off] & 0x7f); // Only the low seven bits
-            sbiDecode = decodabet[sbiCrop];
+        for (int i = 0; i < len; i++) {
+            // bytes and chars alike: anything outside ASCII is bad input, never masked into it
+            int c = source != null ? source[i + off] & 0xff : chars.charAt(i + off);
+            if (c > 0x7f) {
+                throw new Base64DecoderException("Bad Base64 input character at " + i
+                        + ": " + c + "(decimal)");
+            }
+            byte sbiCrop = (byte) c; // ASCII, checked above
+            byte sbiDecode = decodabet[sbiCrop];
 
             if (sbiDecode >= WHITE_SPACE_ENC) { // White space Equals sign or better
                 if (sbiDecode >= EQUALS_SIGN_ENC) {
@@ -531,7 +681,7 @@ public class Base64 {
                     // and must be the last byte[s] in the encoded value
                     if (sbiCrop == EQUALS_SIGN) {
                         int bytesLeft = len - i;
-                        byte lastByte = (byte) (source[len - 1 + off] & 0x7f);
+                        int last = source != null ? source[len - 1 + off] & 0xff : chars.charAt(len - 1 + off);
                         if (b4Posn == 0 || b4Posn == 1) {
                             throw new Base64DecoderException(
                                     "invalid padding byte '=' at byte offset " + i);
@@ -540,42 +690,59 @@ public class Base64 {
                             throw new Base64DecoderException(
                                     "padding byte '=' falsely signals end of encoded value "
                                             + "at offset " + i);
-                        } else if (lastByte != EQUALS_SIGN && lastByte != NEW_LINE) {
+                        } else if (last != EQUALS_SIGN && last != NEW_LINE) {
                             throw new Base64DecoderException(
                                     "encoded value has invalid trailing byte");
                         }
                         break;
                     }
 
-                    b4[b4Posn++] = sbiCrop;
-                    if (b4Posn == 4) {
-                        outBuffPosn += decode4to3(b4, 0, outBuff, outBuffPosn, decodabet);
+                    quantum = (quantum << 6) | sbiDecode;
+                    if (++b4Posn == 4) {
+                        outBuffPosn = writeQuantum(quantum, 3, destination, outBuffPosn, destBuffer, limit);
+                        quantum = 0;
                         b4Posn = 0;
                     }
                 }
             } else {
                 throw new Base64DecoderException("Bad Base64 input character at " + i
-                        + ": " + source[i + off] + "(decimal)");
+                        + ": " + c + "(decimal)");
             }
         }
 
         // Because web safe encoding allows non padding base64 encodes, we
-        // need to pad the rest of the b4 buffer with equal signs when
-        // b4Posn != 0.  There can be at most 2 equal signs at the end of
-        // four characters, so the b4 buffer must have two or three
-        // characters.  This also catches the case where the input is
-        // padded with EQUALS_SIGN
+        // need to decode a trailing partial quantum of two or three
+        // characters, as if it was padded with equal signs.  This also
+        // catches the case where the input is padded with EQUALS_SIGN
         if (b4Posn != 0) {
             if (b4Posn == 1) {
                 throw new Base64DecoderException("single trailing character at offset "
                         + (len - 1));
             }
-            b4[b4Posn++] = EQUALS_SIGN;
-            outBuffPosn += decode4to3(b4, 0, outBuff, outBuffPosn, decodabet);
+            quantum <<= 6 * (4 - b4Posn);
+            outBuffPosn = writeQuantum(quantum, b4Posn - 1, destination, outBuffPosn, destBuffer, limit);
         }
 
-        byte[] out = new byte[outBuffPosn];
-        System.arraycopy(outBuff, 0, out, 0, outBuffPosn);
-        return out;
+        return outBuffPosn - destOffset;
+    }
+
+    private static int writeQuantum(int quantum, int count, byte[] destination, int destOffset,
+                                    ByteBuffer destBuffer, int limit) {
+        if (destBuffer != null) {
+            if (destBuffer.remaining() < count) {
+                throw new IllegalArgumentException("destination buffer too small");
+            }
+            destBuffer.put((byte) (quantum >> 16));
+            if (count > 1) destBuffer.put((byte) (quantum >> 8));
+            if (count > 2) destBuffer.put((byte) quantum);
+        } else {
+            if (limit - destOffset < count) {
+                throw new IllegalArgumentException("destination buffer too small");
+            }
+            destination[destOffset] = (byte) (quantum >> 16);
+            if (count > 1) destination[destOffset + 1] = (byte) (quantum >> 8);
+            if (count > 2) destination[destOffset + 2] = (byte) quantum;
+        }
+        return destOffset + count;
     }
 }
@@ -0,0 +1,378 @@
+package com.farasource.billing.util;
+
+import android.os.Build;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static com.farasource.billing.BillingHelper.BILLING_RESPONSE_RESULT_OK;
+import static com.farasource.billing.BillingHelper.IABHELPER_CANCELLED;
+import static com.farasource.billing.BillingHelper.IABHELPER_TIMEOUT;
+import static com.farasource.billing.BillingHelper.IABHELPER_UNKNOWN_ERROR;
+
+/**
+ * The eventual outcome of an asynchronous billing operation: an {@link IabResult} and, if
+ * that is a success, a value. Futures can be chained with {@link #then} and
+ * {@link #thenCompose}, joined with {@link #combine}, given a deadline with
+ * {@link #withTimeout} and abandoned with {@link #cancel}.
+ * <p>
+ * A failure skips the rest of a chain: every future derived from a failed one fails with
+ * the same result. Listeners run on the thread that completes the future, or right away
+ * on the calling thread if it is already done. A future completes only once; later
+ * attempts are ignored.
+ */
+public final class BillingFuture<T> {
+
+    private static ScheduledThreadPoolExecutor sTimer;
+
+    private final Object mLock = new Object();
+    private boolean mDone = false;
+    private IabResult mResult;
+    private T mValue;
+    private List<Listener<? super T>> mListeners = new ArrayList<Listener<? super T>>();
+
+    public static <T> BillingFuture<T> completed(T value) {
+        BillingFuture<T> future = new BillingFuture<T>();
+        future.complete(value);
+        return future;
+    }
+
+    public static <T> BillingFuture<T> failed(IabResult result) {
+        BillingFuture<T> future = new BillingFuture<T>();
+        future.fail(result);
+        return future;
+    }
+
+    /**
+     * Completes this future successfully.
+     *
+     * @return whether this call completed it
+     */
+    public boolean complete(T value) {
+        return complete(new IabResult(BILLING_RESPONSE_RESULT_OK, null), value);
+    }
+
+    /**
+     * Completes this future with a failure.
+     *
+     * @return whether this call completed it
+     */
+    public boolean fail(IabResult result) {
+        if (result.isSuccess()) {
+            throw new IllegalArgumentException("Can't fail with a successful result.");
+        }
+        return complete(result, null);
+    }
+
+    /**
+     * Completes this future with the given result, and the value if the result is a success.
+     *
+     * @return whether this call completed it
+     */
+    public boolean complete(IabResult result, T value) {
+        List<Listener<? super T>> listeners;
+        synchronized (mLock) {
+            if (mDone) {
+                return false;
+            }
+            mDone = true;
+            mResult = result;
+            mValue = result.isSuccess() ? value : null;
+            listeners = mListeners;
+            mListeners = null;
+            mLock.notifyAll();
+        }
+        RuntimeException failure = null;
+        for (Listener<? super T> listener : listeners) {
+            try {
+                listener.onComplete(result, mValue);
+            } catch (RuntimeException e) {
+                // the other listeners still have to hear about it
+                if (failure == null) {
+                    failure = e;
+                }
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+        return true;
+    }
+
+    /**
+     * Fails this future with {@link com.farasource.billing.BillingHelper#IABHELPER_CANCELLED}.
+     * An operation that was already handed to the market still runs to its end, but its
+     * outcome is dropped.
+     *
+     * @return whether this call completed the future
+     */
+    public boolean cancel() {
+        return complete(new IabResult(IABHELPER_CANCELLED, "Operation cancelled."), null);
+    }
+
+    public boolean isDone() {
+        synchronized (mLock) {
+            return mDone;
+        }
+    }
+
+    public boolean isCancelled() {
+        synchronized (mLock) {
+            return mDone && mResult.getResponse() == IABHELPER_CANCELLED;
+        }
+    }
+
+    /**
+     * Returns the result, or null if this future isn't done yet.
+     */
+    public IabResult getResult() {
+        synchronized (mLock) {
+            return mResult;
+        }
+    }
+
+    /**
+     * Calls {@code listener} once this future is done.
+     */
+    public BillingFuture<T> addListener(Listener<? super T> listener) {
+        synchronized (mLock) {
+            if (!mDone) {
+                mListeners.add(listener);
+                return this;
+            }
+        }
+        listener.onComplete(mResult, mValue);
+        return this;
+    }
+
+    /**
+     * Waits for this future and returns its value. Don't call this from the UI thread.
+     *
+     * @throws IabException if the future failed
+     */
+    public T get() throws IabException, InterruptedException {
+        synchronized (mLock) {
+            while (!mDone) {
+                mLock.wait();
+            }
+        }
+        return getNow();
+    }
+
+    /**
+     * Like {@link #get()}, but fails with
+     * {@link com.farasource.billing.BillingHelper#IABHELPER_TIMEOUT} if this future isn't
+     * done in time. The future itself keeps running.
+     */
+    public T get(long timeout, TimeUnit unit) throws IabException, InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        synchronized (mLock) {
+            while (!mDone) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    throw new IabException(IABHELPER_TIMEOUT, "Timed out waiting for the operation.");
+                }
+                TimeUnit.NANOSECONDS.timedWait(mLock, remaining);
+            }
+        }
+        return getNow();
+    }
+
+    private T getNow() throws IabException {
+        if (mResult.isFailure()) {
+            throw new IabException(mResult);
+        }
+        return mValue;
+    }
+
+    /**
+     * Returns a future of {@code transform} applied to the value of this one. An
+     * {@link IabException} thrown by {@code transform} fails the returned future.
+     */
+    public <R> BillingFuture<R> then(final Transform<? super T, ? extends R> transform) {
+        final BillingFuture<R> next = new BillingFuture<R>();
+        addListener(new Listener<T>() {
+            @Override
+            public void onComplete(IabResult result, T value) {
+                if (result.isFailure()) {
+                    next.fail(result);
+                    return;
+                }
+                try {
+                    next.complete(transform.apply(value));
+                } catch (IabException e) {
+                    next.fail(e.getResult());
+                } catch (RuntimeException e) {
+                    next.fail(new IabResult(IABHELPER_UNKNOWN_ERROR, String.valueOf(e)));
+                    throw e;
+                }
+            }
+        });
+        return next;
+    }
+
+    /**
+     * Returns a future of the operation that {@code continuation} starts with the value of
+     * this one. Cancelling the returned future also cancels that operation's future.
+     */
+    public <R> BillingFuture<R> thenCompose(final Continuation<? super T, R> continuation) {
+        final BillingFuture<R> next = new BillingFuture<R>();
+        addListener(new Listener<T>() {
+            @Override
+            public void onComplete(IabResult result, T value) {
+                if (result.isFailure()) {
+                    next.fail(result);
+                    return;
+                }
+                final BillingFuture<R> inner;
+                try {
+                    inner = continuation.apply(value);
+                } catch (RuntimeException e) {
+                    next.fail(new IabResult(IABHELPER_UNKNOWN_ERROR, String.valueOf(e)));
+                    throw e;
+                }
+                inner.addListener(new Listener<R>() {
+                    @Override
+                    public void onComplete(IabResult innerResult, R innerValue) {
+                        next.complete(innerResult, innerValue);
+                    }
+                });
+                next.addListener(new Listener<R>() {
+                    @Override
+                    public void onComplete(IabResult nextResult, R nextValue) {
+                        if (nextResult.getResponse() == IABHELPER_CANCELLED) {
+                            inner.cancel();
+                        }
+                    }
+                });
+            }
+        });
+        return next;
+    }
+
+    /**
+     * Returns a future that fails with
+     * {@link com.farasource.billing.BillingHelper#IABHELPER_TIMEOUT} if this one isn't done
+     * within {@code timeout}, and otherwise completes like this one. When the returned future
+     * times out or is cancelled, this one is cancelled too.
+     */
+    public BillingFuture<T> withTimeout(long timeout, TimeUnit unit) {
+        final BillingFuture<T> next = new BillingFuture<T>();
+        final IabResult timedOut = new IabResult(IABHELPER_TIMEOUT, "Operation timed out.");
+        final AtomicBoolean expired = new AtomicBoolean();
+        final ScheduledFuture<?> timer = timer().schedule(new Runnable() {
+            @Override
+            public void run() {
+                expired.set(true);
+                // cancelled first, so whoever sees the timeout also sees this one given up
+                cancel();
+                next.fail(timedOut);
+            }
+        }, timeout, unit);
+        addListener(new Listener<T>() {
+            @Override
+            public void onComplete(IabResult result, T value) {
+                timer.cancel(false);
+                if (expired.get() && result.getResponse() == IABHELPER_CANCELLED) {
+                    next.fail(timedOut);
+                } else {
+                    next.complete(result, value);
+                }
+            }
+        });
+        next.addListener(new Listener<T>() {
+            @Override
+            public void onComplete(IabResult result, T value) {
+                if (result.getResponse() == IABHELPER_CANCELLED) {
+                    cancel();
+                }
+            }
+        });
+        return next;
+    }
+
+    /**
+     * Returns a future of both values joined by {@code combiner}. Both operations run at the
+     * same time; the returned future fails as soon as one of them does.
+     */
+    public static <A, B, R> BillingFuture<R> combine(BillingFuture<A> first, final BillingFuture<B> second,
+                                                     final Combiner<? super A, ? super B, ? extends R> combiner) {
+        final BillingFuture<R> next = new BillingFuture<R>();
+        Listener<Object> failFast = new Listener<Object>() {
+            @Override
+            public void onComplete(IabResult result, Object value) {
+                if (result.isFailure()) {
+                    next.fail(result);
+                }
+            }
+        };
+        second.addListener(failFast);
+        first.addListener(failFast);
+        first.addListener(new Listener<A>() {
+            @Override
+            public void onComplete(IabResult result, final A firstValue) {
+                if (result.isFailure()) {
+                    return;
+                }
+                second.addListener(new Listener<B>() {
+                    @Override
+                    public void onComplete(IabResult secondResult, B secondValue) {
+                        if (secondResult.isFailure()) {
+                            return;
+                        }
+                        try {
+                            next.complete(combiner.combine(firstValue, secondValue));
+                        } catch (RuntimeException e) {
+                            next.fail(new IabResult(IABHELPER_UNKNOWN_ERROR, String.valueOf(e)));
+                            throw e;
+                        }
+                    }
+                });
+            }
+        });
+        return next;
+    }
+
+    private static synchronized ScheduledThreadPoolExecutor timer() {
+        if (sTimer == null) {
+            sTimer = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "billing-timer");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+                // don't keep a timer for every future that finished in time;
+                // older releases drop cancelled timers only when they come due
+                sTimer.setRemoveOnCancelPolicy(true);
+            }
+        }
+        return sTimer;
+    }
+
+    public interface Listener<T> {
+        /**
+         * @param value the value if {@code result} is a success, null otherwise
+         */
+        void onComplete(IabResult result, T value);
+    }
+
+    public interface Transform<T, R> {
+        R apply(T value) throws IabException;
+    }
+
+    public interface Continuation<T, R> {
+        BillingFuture<R> apply(T value);
+    }
+
+    public interface Combiner<A, B, R> {
+        R combine(A first, B second);
+    }
+}
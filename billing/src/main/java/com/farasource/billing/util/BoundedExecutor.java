@@ -0,0 +1,131 @@
+package com.farasource.billing.util;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs tasks on another {@link Executor}, but never more than {@code maxParallelism} of
+ * them at the same time; the rest wait in FIFO order. This lets billing work share an
+ * app's thread pool without taking over all of its threads.
+ */
+public final class BoundedExecutor implements Executor {
+
+    private static final String THREAD_NAME_PREFIX = "billing-";
+    private static Executor sDefaultPool;
+
+    private final Executor mDelegate;
+    private final int mMaxParallelism;
+    private final ArrayDeque<Runnable> mQueue = new ArrayDeque<Runnable>();
+    private int mActive = 0;
+
+    private final Runnable mDrain = new Runnable() {
+        @Override
+        public void run() {
+            while (true) {
+                Runnable task;
+                synchronized (mQueue) {
+                    task = mQueue.poll();
+                    if (task == null) {
+                        mActive--;
+                        return;
+                    }
+                }
+                boolean completed = false;
+                try {
+                    task.run();
+                    completed = true;
+                } finally {
+                    if (!completed) {
+                        // let the exception through, but hand the remaining tasks to a new drain
+                        synchronized (mQueue) {
+                            mActive--;
+                        }
+                        try {
+                            scheduleDrain();
+                        } catch (RejectedExecutionException ignored) {
+                            // the queued tasks run with the next execute()
+                        }
+                    }
+                }
+            }
+        }
+    };
+
+    public BoundedExecutor(Executor delegate, int maxParallelism) {
+        if (delegate == null) {
+            throw new IllegalArgumentException("delegate can't be null.");
+        } else if (maxParallelism < 1) {
+            throw new IllegalArgumentException("maxParallelism must be positive.");
+        }
+        mDelegate = delegate;
+        mMaxParallelism = maxParallelism;
+    }
+
+    /**
+     * Returns the process-wide pool used when the app doesn't provide an executor. Its
+     * threads are named {@code billing-N}, are daemons and exit after 30 seconds idle.
+     */
+    public static synchronized Executor defaultPool() {
+        if (sDefaultPool == null) {
+            final AtomicInteger count = new AtomicInteger();
+            ThreadFactory threadFactory = runnable -> {
+                Thread thread = new Thread(runnable, THREAD_NAME_PREFIX + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            };
+            // Every BoundedExecutor caps its own share; the pool grows as needed
+            sDefaultPool = new ThreadPoolExecutor(0, Integer.MAX_VALUE, 30, TimeUnit.SECONDS,
+                    new SynchronousQueue<Runnable>(), threadFactory);
+        }
+        return sDefaultPool;
+    }
+
+    public int getMaxParallelism() {
+        return mMaxParallelism;
+    }
+
+    @Override
+    public void execute(Runnable task) {
+        if (task == null) {
+            throw new NullPointerException("task can't be null.");
+        }
+        synchronized (mQueue) {
+            mQueue.add(task);
+        }
+        try {
+            scheduleDrain();
+        } catch (RejectedExecutionException e) {
+            synchronized (mQueue) {
+                // if a running drain already took the task, it will run after all
+                if (!mQueue.removeLastOccurrence(task)) {
+                    return;
+                }
+            }
+            throw e;
+        }
+    }
+
+    // Starts another drain on the delegate if there is queued work and room for it
+    private void scheduleDrain() {
+        synchronized (mQueue) {
+            if (mQueue.isEmpty() || mActive >= mMaxParallelism) {
+                return;
+            }
+            mActive++;
+        }
+        try {
+            mDelegate.execute(mDrain);
+        } catch (RuntimeException e) {
+            synchronized (mQueue) {
+                mActive--;
+            }
+            throw e;
+        }
+    }
+}
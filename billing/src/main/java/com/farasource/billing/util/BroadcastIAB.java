@@ -2,14 +2,20 @@ package com.farasource.billing.util;
 
 import android.content.Context;
 import android.content.Intent;
-import android.content.pm.PackageInfo;
-import android.content.pm.PackageManager;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
 import android.os.RemoteException;
 import android.text.TextUtils;
 
 import java.lang.ref.WeakReference;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import com.farasource.billing.BillingHelper;
 import com.farasource.billing.BillingLauncher;
@@ -21,7 +27,10 @@ import com.farasource.billing.receiver.BillingReceiver;
 import static com.farasource.billing.BillingHelper.BILLING_RESPONSE_RESULT_OK;
 import static com.farasource.billing.BillingHelper.IABHELPER_ERROR_BASE;
 import static com.farasource.billing.BillingHelper.IABHELPER_MISSING_TOKEN;
+import static com.farasource.billing.BillingHelper.IABHELPER_TIMEOUT;
+import static com.farasource.billing.BillingHelper.IABHELPER_UNKNOWN_ERROR;
 import static com.farasource.billing.BillingHelper.RESPONSE_BUY_INTENT;
+import static com.farasource.billing.BillingHelper.RESPONSE_CODE;
 import static com.farasource.billing.BillingHelper.getResponseDesc;
 
 public class BroadcastIAB extends IAB {
@@ -33,6 +42,9 @@ public class BroadcastIAB extends IAB {
     public static final String ITEM_TYPE_KEY = "itemType";
     public static final String DEVELOPER_PAYLOAD_KEY = "developerPayload";
     public static final String TOKEN_KEY = "token";
+    // Sent with each skuDetail, getPurchase and consume request; markets that support it
+    // send it back with the answer
+    public static final String REQUEST_ID_KEY = "requestId";
     public static final String ping = ".ping";
     public static final String billingSupport = ".billingSupport";
     public static final String purchaseAction = ".purchase";
@@ -51,16 +63,31 @@ public class BroadcastIAB extends IAB {
     private static final int MYKET_VERSION_CODE_WITH_BROADCAST = 900;
     private static final int BAZAAR_VERSION_CODE_WITH_BROADCAST = 801301;
     private final Context context;
-    private AbortableCountDownLatch consumePurchaseLatch;
-    private int consumePurchaseResponse;
-
-    private AbortableCountDownLatch getSkuDetailLatch;
-    private Bundle skuDetailBundle;
-
-    private AbortableCountDownLatch getPurchaseLatch;
-    private Bundle getPurchaseBundle;
-
-    private BillingReceiverCommunicator billingReceiverCommunicator = null;
+    private IabDeadlines deadlines = IabDeadlines.DEFAULT;
+    // Runs app callbacks, and fails the ping, billingSupport and purchase requests that the
+    // market doesn't answer in time
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final Runnable pingTimeout = this::onPingTimeout;
+    private final Runnable billingSupportTimeout = this::onBillingSupportTimeout;
+    private final Runnable purchaseTimeout = this::onPurchaseTimeout;
+    // Whether a purchase request is waiting for the market's buy intent; guarded by this
+    private boolean awaitingPurchaseAnswer = false;
+
+    // Requests waiting for their answer, by request ID. Each is added before its request is
+    // sent and removed once it is answered or timed out, so that a late answer is dropped.
+    private final ConcurrentHashMap<String, PendingRequest> pendingRequests =
+            new ConcurrentHashMap<String, PendingRequest>();
+    // Request IDs are unique across the connections of this process, which all see every answer
+    private static final AtomicLong nextRequestId = new AtomicLong();
+    // The answer actions the market has sent request IDs back with. Until it does for a kind,
+    // its answers can only be matched to requests by their kind, so at most one request of
+    // that kind may be in flight.
+    private final Set<String> echoingActions =
+            Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    // Handlers of the market's answers, by full action
+    private final Map<String, BillingReceiverCommunicator> receivers =
+            new HashMap<String, BillingReceiverCommunicator>();
     private WeakReference<OnBroadCastConnectListener> connectListenerWeakReference;
     private WeakReference<BillingSupportCommunication> billingSupportWeakReference;
     private WeakReference<BillingLauncher> launchPurchaseActivityWeakReference;
@@ -70,25 +97,24 @@ public class BroadcastIAB extends IAB {
         this.context = context;
     }
 
-    public boolean connect(Context context, OnBroadCastConnectListener listener) {
-        try {
-            PackageInfo pInfo = context.getPackageManager().getPackageInfo(marketId, 0);
-            int versionCode;
-            if (android.os.Build.VERSION.SDK_INT >= android.os.Build.VERSION_CODES.P) {
-                versionCode = (int) pInfo.getLongVersionCode();
-            } else {
-                versionCode = pInfo.versionCode;
-            }
+    /**
+     * Sets how long each kind of request waits for the market. Call before {@link #connect}.
+     */
+    public void setDeadlines(IabDeadlines deadlines) {
+        this.deadlines = deadlines;
+    }
 
-            if (checkMarketHasBroadCast(versionCode)) {
+    public boolean connect(Context context, OnBroadCastConnectListener listener) {
+        MarketInfo marketInfo = MarketInfo.get(context);
+        if (marketInfo.isMarketInstalled() && marketId.equals(marketInfo.getMarketId())) {
+            if (checkMarketHasBroadCast((int) marketInfo.getVersionCode())) {
                 createIABReceiver();
                 registerBroadcast();
-                trySendPingToMarket();
                 connectListenerWeakReference = new WeakReference<>(listener);
+                mainHandler.postDelayed(pingTimeout, deadlines.getPingMillis());
+                trySendPingToMarket();
                 return true;
             }
-        } catch (PackageManager.NameNotFoundException e) {
-            return false;
         }
 
         return false;
@@ -122,65 +148,43 @@ public class BroadcastIAB extends IAB {
         return null;
     }
 
+    // Answers arrive on the receiver's background thread; the ones that lead to app
+    // callbacks are handed to the main thread
     private void createIABReceiver() {
-        billingReceiverCommunicator = intent -> {
-            logger.logDebug("new message received in broadcast");
-            String intentAction = intent.getAction();
-            if (intentAction == null) {
-                logger.logError("action is null");
-                return;
-            }
-
-            if (disposed()) {
-                return;
-            }
+        receivers.put(getAction(receivePingAction), intent -> mainHandler.post(this::handlePing));
+        receivers.put(getAction(receivePurchaseAction),
+                intent -> mainHandler.post(() -> handleLaunchPurchaseResponse(intent.getExtras())));
+        receivers.put(getAction(receiveBillingSupport),
+                intent -> mainHandler.post(() -> handleBillingSupport(intent.getExtras())));
+        receivers.put(getAction(receiveConsumeAction), intent -> handleRequestAnswer(receiveConsumeAction, intent));
+        receivers.put(getAction(receiveSkuDetailAction), intent -> handleRequestAnswer(receiveSkuDetailAction, intent));
+        receivers.put(getAction(receiveGetPurchaseAction),
+                intent -> handleRequestAnswer(receiveGetPurchaseAction, intent));
+    }
 
-            String action = intentAction.replace(marketId, "");
-            switch (action) {
-                case receivePingAction:
-                    OnBroadCastConnectListener listener = safeGetFromWeakReference(connectListenerWeakReference);
-                    mSetupDone = true;
-                    if (listener != null) {
-                        listener.connected();
-                    }
-                    break;
-                case receivePurchaseAction:
-                    handleLaunchPurchaseResponse(intent.getExtras());
-                    break;
-
-                case receiveBillingSupport:
-                    logger.logDebug("billingSupport message received in broadcast");
-                    handleBillingSupport(intent.getExtras());
-                    break;
-
-                case receiveConsumeAction:
-                    consumePurchaseResponse = getResponseCodeFromIntent(intent);
-                    if (consumePurchaseLatch != null) {
-                        consumePurchaseLatch.countDown();
-                    }
-                    break;
-
-                case receiveSkuDetailAction:
-                    skuDetailBundle = intent.getExtras();
-                    if (getSkuDetailLatch != null) {
-                        getSkuDetailLatch.countDown();
-                    }
-                    break;
-                case receiveGetPurchaseAction:
-                    getPurchaseBundle = intent.getExtras();
-                    if (getPurchaseLatch != null) {
-                        getPurchaseLatch.countDown();
-                    }
-                    break;
-            }
-        };
+    private void handlePing() {
+        mainHandler.removeCallbacks(pingTimeout);
+        OnBroadCastConnectListener listener = takeConnectListener();
+        if (listener == null || disposed()) {
+            // timed out already
+            return;
+        }
+        mSetupDone = true;
+        listener.connected();
     }
 
     private void handleLaunchPurchaseResponse(Bundle extras) {
+        if (disposed()) {
+            return;
+        }
+        mainHandler.removeCallbacks(purchaseTimeout);
+        if (!takePurchaseAnswer()) {
+            // timed out already
+            return;
+        }
         int response = getResponseCodeFromBundle(extras);
         if (response != BILLING_RESPONSE_RESULT_OK) {
             logger.logError("Unable to buy item, Error response: " + getResponseDesc(response));
-            flagEndAsync();
             IabResult result = new IabResult(response, "Unable to buy item");
             if (mPurchaseListener != null) mPurchaseListener.onIabPurchaseFinished(result, null);
             return;
@@ -191,6 +195,10 @@ public class BroadcastIAB extends IAB {
 
         BillingLauncher billingLauncher = safeGetFromWeakReference(launchPurchaseActivityWeakReference);
         if (billingLauncher == null) {
+            // the helper was disposed of; report it so the purchase doesn't stay in progress
+            logger.logError("Billing launcher is gone; can't launch the buy intent.");
+            IabResult result = new IabResult(IABHELPER_UNKNOWN_ERROR, "Billing launcher is no longer available.");
+            if (mPurchaseListener != null) mPurchaseListener.onIabPurchaseFinished(result, null);
             return;
         }
 
@@ -198,15 +206,122 @@ public class BroadcastIAB extends IAB {
         billingLauncher.startIntent(purchaseIntent);
     }
 
-    private void handleBillingSupport(Bundle bundle) {
+    private void handleRequestAnswer(String action, Intent intent) {
+        logger.logDebug("new message received in broadcast: " + action);
+        String requestId = intent.getStringExtra(REQUEST_ID_KEY);
+        PendingRequest pending;
+        if (requestId != null) {
+            if (echoingActions.add(action)) {
+                logger.logDebug("Market sends request IDs back for " + action + "; allowing concurrent requests.");
+            }
+            // null if it timed out, or if it belongs to another connection
+            pending = pendingRequests.remove(requestId);
+        } else {
+            pending = takePendingRequest(action);
+        }
+        if (pending != null) {
+            Bundle extras = intent.getExtras();
+            pending.answer = extras != null ? extras : new Bundle();
+            pending.latch.countDown();
+        }
+    }
 
+    // Serial mode: the only request waiting for an answer of this kind, if any
+    private PendingRequest takePendingRequest(String action) {
+        for (Map.Entry<String, PendingRequest> entry : pendingRequests.entrySet()) {
+            if (entry.getValue().action.equals(action) && pendingRequests.remove(entry.getKey(), entry.getValue())) {
+                return entry.getValue();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Sends a request and waits for the market's answer.
+     *
+     * @return the answer, or null if the deadline passed first
+     */
+    private Bundle sendRequest(Intent intent, String answerAction, long timeoutMillis) throws InterruptedException {
+        String requestId = Long.toString(nextRequestId.incrementAndGet());
+        PendingRequest pending = new PendingRequest(answerAction);
+        pendingRequests.put(requestId, pending);
+        intent.putExtra(REQUEST_ID_KEY, requestId);
+        try {
+            context.sendBroadcast(intent);
+            if (!pending.latch.await(timeoutMillis, TimeUnit.MILLISECONDS)) {
+                return null;
+            }
+            return pending.answer;
+        } finally {
+            pendingRequests.remove(requestId);
+        }
+    }
+
+    private void handleBillingSupport(Bundle bundle) {
+        if (disposed()) {
+            return;
+        }
+        mainHandler.removeCallbacks(billingSupportTimeout);
+        BillingSupportCommunication billingListener = takeBillingSupportListener();
+        if (billingListener == null) {
+            // timed out already
+            return;
+        }
         mSubscriptionsSupported = bundle.getBoolean(SUBSCRIPTION_SUPPORT_KEY);
-        BillingSupportCommunication billingListener = safeGetFromWeakReference(billingSupportWeakReference);
+        billingListener.onBillingSupportResult(getResponseCodeFromBundle(bundle));
+    }
+
+    private void onPingTimeout() {
+        OnBroadCastConnectListener listener = takeConnectListener();
+        if (listener != null) {
+            logger.logWarn("Market didn't answer the ping within " + deadlines.getPingMillis() + " ms.");
+            listener.couldNotConnect();
+        }
+    }
+
+    private void onBillingSupportTimeout() {
+        BillingSupportCommunication billingListener = takeBillingSupportListener();
         if (billingListener != null) {
-            billingListener.onBillingSupportResult(getResponseCodeFromBundle(bundle));
+            logger.logWarn("Market didn't answer billingSupport within " + deadlines.getBillingSupportMillis() + " ms.");
+            billingListener.onBillingSupportResult(IABHELPER_TIMEOUT);
+        }
+    }
+
+    private void onPurchaseTimeout() {
+        if (takePurchaseAnswer()) {
+            logger.logWarn("Market didn't answer the purchase request within " + deadlines.getPurchaseMillis() + " ms.");
+            IabResult result = new IabResult(IABHELPER_TIMEOUT, "Market didn't answer the purchase request.");
+            if (mPurchaseListener != null) mPurchaseListener.onIabPurchaseFinished(result, null);
         }
     }
 
+    // The connect listener is called once: by the ping answer or by the ping timeout
+    private synchronized OnBroadCastConnectListener takeConnectListener() {
+        OnBroadCastConnectListener listener = safeGetFromWeakReference(connectListenerWeakReference);
+        connectListenerWeakReference = null;
+        return listener;
+    }
+
+    // A purchase request is finished once: by the market's answer or by the purchase timeout
+    private synchronized boolean takePurchaseAnswer() {
+        boolean awaiting = awaitingPurchaseAnswer;
+        awaitingPurchaseAnswer = false;
+        return awaiting;
+    }
+
+    private synchronized BillingSupportCommunication takeBillingSupportListener() {
+        BillingSupportCommunication listener = safeGetFromWeakReference(billingSupportWeakReference);
+        billingSupportWeakReference = null;
+        return listener;
+    }
+
+    // The answer used in place of the market's when it doesn't answer in time
+    private static Bundle timeoutBundle() {
+        Bundle bundle = new Bundle();
+        bundle.putInt(RESPONSE_CODE, IABHELPER_TIMEOUT);
+        return bundle;
+    }
+
     private <T> T safeGetFromWeakReference(WeakReference<T> onConnectListenerWeakReference) {
         if (onConnectListenerWeakReference == null) {
             return null;
@@ -215,7 +330,9 @@ public class BroadcastIAB extends IAB {
     }
 
     private void registerBroadcast() {
-        BillingReceiver.addObserver(billingReceiverCommunicator);
+        for (Map.Entry<String, BillingReceiverCommunicator> entry : receivers.entrySet()) {
+            BillingReceiver.addObserver(entry.getKey(), entry.getValue());
+        }
     }
 
     private void trySendPingToMarket() {
@@ -237,7 +354,10 @@ public class BroadcastIAB extends IAB {
     @Override
     public void isBillingSupported(int apiVersion, String packageName,
                                    BillingSupportCommunication communication) {
-        billingSupportWeakReference = new WeakReference<>(communication);
+        synchronized (this) {
+            billingSupportWeakReference = new WeakReference<>(communication);
+        }
+        mainHandler.postDelayed(billingSupportTimeout, deadlines.getBillingSupportMillis());
 
         Intent intent = getNewIntentForBroadcast();
         intent.setAction(getAction(billingSupport));
@@ -257,10 +377,15 @@ public class BroadcastIAB extends IAB {
         intent.putExtra(ITEM_TYPE_KEY, itemType);
         intent.putExtra(API_VERSION_KEY, apiVersion);
         intent.putExtra(DEVELOPER_PAYLOAD_KEY, extraData);
-        context.sendBroadcast(intent);
 
         mPurchaseListener = listener;
         mPurchasingItemType = itemType;
+        synchronized (this) {
+            awaitingPurchaseAnswer = true;
+        }
+        mainHandler.removeCallbacks(purchaseTimeout);
+        mainHandler.postDelayed(purchaseTimeout, deadlines.getPurchaseMillis());
+        context.sendBroadcast(intent);
     }
 
     @Override
@@ -279,19 +404,20 @@ public class BroadcastIAB extends IAB {
         intent.setAction(getAction(consumeAction));
         intent.putExtra(TOKEN_KEY, token);
         intent.putExtra(API_VERSION_KEY, apiVersion);
-        mContext.sendBroadcast(intent);
-
-        consumePurchaseLatch = new AbortableCountDownLatch(1);
-
 
         try {
-            consumePurchaseLatch.await(60, TimeUnit.SECONDS);
-            if (consumePurchaseResponse == BILLING_RESPONSE_RESULT_OK) {
+            Bundle answer = sendRequest(intent, receiveConsumeAction, deadlines.getConsumeMillis());
+            if (answer == null) {
+                logger.logWarn("Market didn't answer consume of sku " + sku + " in time.");
+                throw new IabException(IABHELPER_TIMEOUT, "Timed out consuming sku " + sku);
+            }
+            int response = getResponseCodeFromBundle(answer);
+            if (response == BILLING_RESPONSE_RESULT_OK) {
                 logger.logDebug("Successfully consumed sku: " + sku);
             } else {
                 logger.logDebug("Error consuming consuming sku " + sku + ". " +
-                        getResponseDesc(consumePurchaseResponse));
-                throw new IabException(consumePurchaseResponse, "Error consuming sku " + sku);
+                        getResponseDesc(response));
+                throw new IabException(response, "Error consuming sku " + sku);
             }
         } catch (InterruptedException e) {
             throw new IabException(IABHELPER_ERROR_BASE, "Error consuming sku " + sku);
@@ -302,20 +428,20 @@ public class BroadcastIAB extends IAB {
     public Bundle getSkuDetails(int billingVersion, String packageName, String itemType,
                                 Bundle querySkus) throws RemoteException {
 
-        skuDetailBundle = null;
-
         Intent intent = getNewIntentForBroadcast();
         intent.setAction(getAction(skuDetailAction));
         intent.putExtra(ITEM_TYPE_KEY, itemType);
         intent.putExtra(PACKAGE_NAME_KEY, packageName);
         intent.putExtra(API_VERSION_KEY, billingVersion);
         intent.putExtras(querySkus);
-        context.sendBroadcast(intent);
 
-        getSkuDetailLatch = new AbortableCountDownLatch(1);
         try {
-            getSkuDetailLatch.await();
-            return skuDetailBundle;
+            Bundle answer = sendRequest(intent, receiveSkuDetailAction, deadlines.getSkuDetailsMillis());
+            if (answer == null) {
+                logger.logWarn("Market didn't answer getSkuDetails in time.");
+                return timeoutBundle();
+            }
+            return answer;
 
         } catch (InterruptedException e) {
             logger.logWarn("error happened while getting sku detail for " + packageName);
@@ -328,20 +454,20 @@ public class BroadcastIAB extends IAB {
     public Bundle getPurchases(int billingVersion, String packageName, String itemType,
                                String continueToken) {
 
-        getPurchaseBundle = null;
-
         Intent intent = getNewIntentForBroadcast();
         intent.setAction(getAction(getPurchaseAction));
         intent.putExtra(ITEM_TYPE_KEY, itemType);
         intent.putExtra(PACKAGE_NAME_KEY, packageName);
         intent.putExtra(API_VERSION_KEY, billingVersion);
         intent.putExtra(TOKEN_KEY, continueToken);
-        context.sendBroadcast(intent);
 
-        getPurchaseLatch = new AbortableCountDownLatch(1);
         try {
-            getPurchaseLatch.await();
-            return getPurchaseBundle;
+            Bundle answer = sendRequest(intent, receiveGetPurchaseAction, deadlines.getGetPurchasesMillis());
+            if (answer == null) {
+                logger.logWarn("Market didn't answer getPurchases in time.");
+                return timeoutBundle();
+            }
+            return answer;
 
         } catch (InterruptedException e) {
             logger.logWarn("error happened while getting sku detail for " + packageName);
@@ -353,24 +479,66 @@ public class BroadcastIAB extends IAB {
     @Override
     public void dispose(Context context) {
         super.dispose(context);
-        if (billingReceiverCommunicator != null) {
-            BillingReceiver.removeObserver(billingReceiverCommunicator);
-        }
-        if (consumePurchaseLatch != null) {
-            consumePurchaseLatch.abort();
+        for (Map.Entry<String, BillingReceiverCommunicator> entry : receivers.entrySet()) {
+            BillingReceiver.removeObserver(entry.getKey(), entry.getValue());
         }
-
-        if (getSkuDetailLatch != null) {
-            getSkuDetailLatch.abort();
+        mainHandler.removeCallbacks(pingTimeout);
+        mainHandler.removeCallbacks(billingSupportTimeout);
+        mainHandler.removeCallbacks(purchaseTimeout);
+        synchronized (this) {
+            connectListenerWeakReference = null;
+            billingSupportWeakReference = null;
+            awaitingPurchaseAnswer = false;
         }
-
-        if (getPurchaseLatch != null) {
-            getPurchaseLatch.abort();
+        for (PendingRequest pending : pendingRequests.values()) {
+            pending.latch.abort();
         }
-        billingReceiverCommunicator = null;
+        pendingRequests.clear();
+        receivers.clear();
     }
 
     private String getAction(String action) {
         return marketId + action;
     }
+
+    /**
+     * Concurrent requests of a kind are only possible once the market has shown that it sends
+     * request IDs back with answers of that kind; until then, requests of that kind are made
+     * one at a time.
+     */
+    @Override
+    public boolean supportsConcurrentRequests(int kind) {
+        return echoingActions.contains(answerAction(kind));
+    }
+
+    @Override
+    public boolean supportsConcurrentRequests() {
+        return supportsConcurrentRequests(REQUEST_CONSUME)
+                && supportsConcurrentRequests(REQUEST_SKU_DETAILS)
+                && supportsConcurrentRequests(REQUEST_PURCHASES);
+    }
+
+    private static String answerAction(int kind) {
+        switch (kind) {
+            case REQUEST_CONSUME:
+                return receiveConsumeAction;
+            case REQUEST_SKU_DETAILS:
+                return receiveSkuDetailAction;
+            case REQUEST_PURCHASES:
+                return receiveGetPurchaseAction;
+            default:
+                throw new IllegalArgumentException("Unknown request kind: " + kind);
+        }
+    }
+
+    private static final class PendingRequest {
+        // The action of the answer this request waits for
+        final String action;
+        final AbortableCountDownLatch latch = new AbortableCountDownLatch(1);
+        volatile Bundle answer;
+
+        PendingRequest(String action) {
+            this.action = action;
+        }
+    }
 }
@@ -25,6 +25,11 @@ import static com.farasource.billing.BillingHelper.getResponseDesc;
 
 public abstract class IAB {
 
+    // Kinds of request, see supportsConcurrentRequests(int)
+    public static final int REQUEST_CONSUME = 0;
+    public static final int REQUEST_SKU_DETAILS = 1;
+    public static final int REQUEST_PURCHASES = 2;
+
     // Are subscriptions supported?
     public boolean mSubscriptionsSupported = false;
     // Is setup done?
@@ -42,7 +47,6 @@ public abstract class IAB {
         @Override
         public void onReceiver(int resultCode, Intent data) {
             IabResult result;
-            flagEndAsync();
             if (data == null) {
                 logger.logError("Null data in IAB activity result.");
                 result = new IabResult(IABHELPER_BAD_RESPONSE, "Null data in IAB result");
@@ -185,10 +189,20 @@ public abstract class IAB {
 
     public abstract void consume(Context mContext, Purchase itemInfo) throws IabException;
 
-    public void flagStartAsync(String refresh_inventory) {
+    /**
+     * Returns whether getPurchases, getSkuDetails and consume may all be called from several
+     * threads at the same time.
+     */
+    public boolean supportsConcurrentRequests() {
+        return false;
     }
 
-    public void flagEndAsync() {
+    /**
+     * Returns whether several requests of one kind, one of the {@code REQUEST_*} constants,
+     * may be in flight at the same time.
+     */
+    public boolean supportsConcurrentRequests(int kind) {
+        return supportsConcurrentRequests();
     }
 
     public abstract Bundle getSkuDetails(int billingVersion, String packageName, String itemType,
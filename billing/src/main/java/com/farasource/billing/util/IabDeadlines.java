@@ -0,0 +1,127 @@
+package com.farasource.billing.util;
+
+/**
+ * How long the broadcast connection waits for the market to answer each kind of request.
+ * A request that isn't answered in time fails with
+ * {@link com.farasource.billing.BillingHelper#IABHELPER_TIMEOUT}. Instances are immutable;
+ * use {@link Builder} to change some of the {@link #DEFAULT} values.
+ */
+public final class IabDeadlines {
+
+    public static final IabDeadlines DEFAULT = new Builder().build();
+
+    private final long mPingMillis;
+    private final long mBillingSupportMillis;
+    private final long mSkuDetailsMillis;
+    private final long mGetPurchasesMillis;
+    private final long mConsumeMillis;
+    private final long mPurchaseMillis;
+
+    private IabDeadlines(Builder builder) {
+        mPingMillis = builder.mPingMillis;
+        mBillingSupportMillis = builder.mBillingSupportMillis;
+        mSkuDetailsMillis = builder.mSkuDetailsMillis;
+        mGetPurchasesMillis = builder.mGetPurchasesMillis;
+        mConsumeMillis = builder.mConsumeMillis;
+        mPurchaseMillis = builder.mPurchaseMillis;
+    }
+
+    public long getPingMillis() {
+        return mPingMillis;
+    }
+
+    public long getBillingSupportMillis() {
+        return mBillingSupportMillis;
+    }
+
+    public long getSkuDetailsMillis() {
+        return mSkuDetailsMillis;
+    }
+
+    public long getGetPurchasesMillis() {
+        return mGetPurchasesMillis;
+    }
+
+    public long getConsumeMillis() {
+        return mConsumeMillis;
+    }
+
+    public long getPurchaseMillis() {
+        return mPurchaseMillis;
+    }
+
+    public static final class Builder {
+        private long mPingMillis = 10 * 1000;
+        private long mBillingSupportMillis = 10 * 1000;
+        private long mSkuDetailsMillis = 30 * 1000;
+        private long mGetPurchasesMillis = 30 * 1000;
+        private long mConsumeMillis = 60 * 1000;
+        private long mPurchaseMillis = 30 * 1000;
+
+        public Builder() {
+        }
+
+        public Builder(IabDeadlines base) {
+            mPingMillis = base.mPingMillis;
+            mBillingSupportMillis = base.mBillingSupportMillis;
+            mSkuDetailsMillis = base.mSkuDetailsMillis;
+            mGetPurchasesMillis = base.mGetPurchasesMillis;
+            mConsumeMillis = base.mConsumeMillis;
+            mPurchaseMillis = base.mPurchaseMillis;
+        }
+
+        /**
+         * Deadline for the market to answer the ping sent while connecting.
+         */
+        public Builder setPingMillis(long millis) {
+            mPingMillis = checkPositive(millis);
+            return this;
+        }
+
+        public Builder setBillingSupportMillis(long millis) {
+            mBillingSupportMillis = checkPositive(millis);
+            return this;
+        }
+
+        /**
+         * Deadline for each getSkuDetails call, i.e. each chunk of SKUs.
+         */
+        public Builder setSkuDetailsMillis(long millis) {
+            mSkuDetailsMillis = checkPositive(millis);
+            return this;
+        }
+
+        /**
+         * Deadline for each page of owned purchases.
+         */
+        public Builder setGetPurchasesMillis(long millis) {
+            mGetPurchasesMillis = checkPositive(millis);
+            return this;
+        }
+
+        public Builder setConsumeMillis(long millis) {
+            mConsumeMillis = checkPositive(millis);
+            return this;
+        }
+
+        /**
+         * Deadline for the market to answer a purchase request with the buy intent. The
+         * purchase screen itself, once shown, has no deadline.
+         */
+        public Builder setPurchaseMillis(long millis) {
+            mPurchaseMillis = checkPositive(millis);
+            return this;
+        }
+
+        public IabDeadlines build() {
+            return new IabDeadlines(this);
+        }
+
+        private static long checkPositive(long millis) {
+            if (millis <= 0) {
+                throw new IllegalArgumentException("Deadlines must be positive.");
+            }
+            return millis;
+        }
+    }
+}
@@ -16,44 +16,79 @@
 package com.farasource.billing.util;
 
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Collection;
 import java.util.List;
 import java.util.Map;
-
-
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Holds the current {@link InventorySnapshot}. Reads go to the snapshot that is current
+ * at the time of the call and never block; every change builds a new snapshot and swaps
+ * it in, so readers on other threads always see either the old or the new contents and
+ * never a half-applied change. Use {@link #getSnapshot()} to read several values from
+ * the same state.
+ */
 public class Inventory {
-    Map<String, SkuDetails> mSkuMap = new HashMap<String, SkuDetails>();
-    Map<String, Purchase> mPurchaseMap = new HashMap<String, Purchase>();
+    private final AtomicReference<InventorySnapshot> mSnapshot;
 
     public Inventory() {
+        this(InventorySnapshot.EMPTY);
+    }
+
+    public Inventory(InventorySnapshot snapshot) {
+        mSnapshot = new AtomicReference<InventorySnapshot>(snapshot);
+    }
+
+    /**
+     * Returns the current contents of this inventory. The snapshot is immutable and
+     * safe to read from any thread.
+     */
+    public InventorySnapshot getSnapshot() {
+        return mSnapshot.get();
+    }
+
+    /**
+     * Replaces the contents of this inventory.
+     */
+    public void setSnapshot(InventorySnapshot snapshot) {
+        mSnapshot.set(snapshot);
+    }
+
+    /**
+     * Returns whether this inventory was restored from a cache rather than queried
+     * from the market, see {@link InventorySnapshot#isStale()}.
+     */
+    public boolean isStale() {
+        return mSnapshot.get().isStale();
     }
 
     /**
      * Returns the listing details for an in-app product.
      */
     public SkuDetails getSkuDetails(String sku) {
-        return mSkuMap.get(sku);
+        return mSnapshot.get().getSkuDetails(sku);
     }
 
     /**
      * Returns purchase information for a given product, or null if there is no purchase.
      */
     public Purchase getPurchase(String sku) {
-        return mPurchaseMap.get(sku);
+        return mSnapshot.get().getPurchase(sku);
     }
 
     /**
      * Returns whether or not there exists a purchase of the given product.
      */
     public boolean hasPurchase(String sku) {
-        return mPurchaseMap.containsKey(sku);
+        return mSnapshot.get().hasPurchase(sku);
     }
 
     /**
      * Return whether or not details about the given product are available.
      */
     public boolean hasDetails(String sku) {
-        return mSkuMap.containsKey(sku);
+        return mSnapshot.get().hasDetails(sku);
     }
 
     /**
@@ -64,47 +99,146 @@ public class Inventory {
      * purchase data from the Inventory you already have is quicker than querying for
      * a new Inventory.
      */
-    public void erasePurchase(String sku) {
-        if (mPurchaseMap.containsKey(sku)) mPurchaseMap.remove(sku);
+    public void erasePurchase(final String sku) {
+        update(new Update() {
+            @Override
+            public void apply(InventorySnapshot.Builder builder) {
+                builder.erasePurchase(sku);
+            }
+        });
     }
 
     /**
      * Returns a list of all owned product IDs.
      */
     List<String> getAllOwnedSkus() {
-        return new ArrayList<String>(mPurchaseMap.keySet());
+        return new ArrayList<String>(mSnapshot.get().getOwnedSkus());
     }
 
     /**
      * Returns a list of all owned product IDs of a given type
      */
     public List<String> getAllOwnedSkus(String itemType) {
-        List<String> result = new ArrayList<String>();
-        for (Purchase p : mPurchaseMap.values()) {
-            if (p.getItemType().equals(itemType)) result.add(p.getSku());
-        }
-        return result;
+        return new ArrayList<String>(getOwnedSkusView(itemType));
+    }
+
+    /**
+     * Returns a read-only view of the owned product IDs of a given type.
+     * Unlike {@link #getAllOwnedSkus(String)} this doesn't copy anything.
+     */
+    public Set<String> getOwnedSkusView(String itemType) {
+        return mSnapshot.get().getOwnedSkus(itemType);
+    }
+
+    /**
+     * Returns a read-only view of the owned purchases of a given type.
+     */
+    public Collection<Purchase> getPurchasesView(String itemType) {
+        return mSnapshot.get().getPurchases(itemType);
     }
 
     /**
      * Returns a list of all purchases.
      */
     public List<Purchase> getAllPurchases() {
-        return new ArrayList<Purchase>(mPurchaseMap.values());
+        return new ArrayList<Purchase>(getPurchasesView());
+    }
+
+    /**
+     * Returns a read-only view of all purchases.
+     */
+    public Collection<Purchase> getPurchasesView() {
+        return mSnapshot.get().getPurchases();
     }
 
     /**
      * Returns a list of all products.
      */
     public List<SkuDetails> getAllProducts() {
-        return new ArrayList<SkuDetails>(mSkuMap.values());
+        return new ArrayList<SkuDetails>(getProductsView());
     }
 
-    public void addSkuDetails(SkuDetails d) {
-        mSkuMap.put(d.getSku(), d);
+    /**
+     * Returns a read-only view of all products.
+     */
+    public Collection<SkuDetails> getProductsView() {
+        return mSnapshot.get().getProducts();
+    }
+
+    public void addSkuDetails(final SkuDetails d) {
+        update(new Update() {
+            @Override
+            public void apply(InventorySnapshot.Builder builder) {
+                builder.addSkuDetails(d);
+            }
+        });
     }
 
     public void addPurchase(Purchase p) {
-        mPurchaseMap.put(p.getSku(), p);
+        addPurchase(p.getSku(), p);
+    }
+
+    /**
+     * Adds a purchase under the product ID the market reported for it, without
+     * reading it from the purchase itself (which would parse a lazy purchase).
+     */
+    public void addPurchase(final String sku, final Purchase p) {
+        update(new Update() {
+            @Override
+            public void apply(InventorySnapshot.Builder builder) {
+                builder.addPurchase(sku, p);
+            }
+        });
+    }
+
+    /**
+     * Returns the purchases that were returned by the market but whose signature
+     * could not be verified. These are not part of the owned purchases.
+     */
+    public List<Purchase> getVerificationFailures() {
+        return new ArrayList<Purchase>(mSnapshot.get().getVerificationFailures());
+    }
+
+    public boolean hasVerificationFailures() {
+        return mSnapshot.get().hasVerificationFailures();
+    }
+
+    /**
+     * Returns the SKUs whose details could not be queried, see
+     * {@link InventorySnapshot#getSkuDetailsFailures()}.
+     */
+    public Map<String, IabResult> getSkuDetailsFailures() {
+        return mSnapshot.get().getSkuDetailsFailures();
+    }
+
+    public boolean hasSkuDetailsFailures() {
+        return mSnapshot.get().hasSkuDetailsFailures();
+    }
+
+    public void addVerificationFailure(final Purchase p) {
+        update(new Update() {
+            @Override
+            public void apply(InventorySnapshot.Builder builder) {
+                builder.addVerificationFailure(p);
+            }
+        });
+    }
+
+    // Applies a change to a copy of the current snapshot and swaps the copy in, retrying
+    // if another thread published a snapshot in the meantime. Each change copies the
+    // whole inventory; bulk changes should go through one InventorySnapshot.Builder.
+    private void update(Update update) {
+        while (true) {
+            InventorySnapshot current = mSnapshot.get();
+            InventorySnapshot.Builder builder = new InventorySnapshot.Builder(current);
+            update.apply(builder);
+            if (mSnapshot.compareAndSet(current, builder.build())) {
+                return;
+            }
+        }
+    }
+
+    private interface Update {
+        void apply(InventorySnapshot.Builder builder);
     }
 }
@@ -0,0 +1,452 @@
+package com.farasource.billing.util;
+
+import android.util.Log;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Keeps the last successfully queried inventory in a file, so that it can be shown at
+ * the next start before the market has answered. Only owned purchases and SKU details are
+ * stored, not verification failures. A loaded inventory is marked as
+ * {@link InventorySnapshot#isStale() stale}: it is what the market said last time, and
+ * should be replaced by a fresh query as soon as one finishes.
+ * <p>
+ * The file holds the already parsed fields of every record, so nothing is parsed as JSON
+ * when it is read back. It is laid out as follows (all integers big-endian):
+ * <pre>
+ * int magic, int version
+ * int n, n strings                  string table (item types, package names, ...)
+ * int n, n * (int hash, int offset) purchase index, sorted by product ID hash
+ * int n, n * (int hash, int offset) SKU details index, sorted by product ID hash
+ * records                           each an int length followed by its fields
+ * </pre>
+ * Strings are an int byte length (-1 for null) followed by UTF-8 bytes; offsets are
+ * relative to the first record. {@link #open()} maps the file into memory and only
+ * decodes the records that are asked for, so checking a single entitlement at startup
+ * reads one index and one record.
+ * <p>
+ * Loading and saving block, so don't call them from a UI thread.
+ */
+public class InventoryCache {
+    private static final String TAG = "IABUtil/InventoryCache";
+
+    private static final int FILE_MAGIC = 0x49494346; // "IICF"
+    private static final int FILE_VERSION = 2;
+    private static final int INDEX_ENTRY_SIZE = 8;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final File mFile;
+
+    public InventoryCache(File file) {
+        mFile = file;
+    }
+
+    /**
+     * Returns the cached inventory, or null if there is none or it can't be read.
+     */
+    public InventorySnapshot load() {
+        return load(open());
+    }
+
+    /**
+     * Decodes the whole inventory seen by a reader from {@link #open()}. Returns null if the
+     * reader is null or the inventory can't be read, in which case the cache is deleted.
+     */
+    public InventorySnapshot load(Reader reader) {
+        if (reader == null) {
+            return null;
+        }
+        InventorySnapshot snapshot = reader.toSnapshot();
+        if (snapshot == null) {
+            clear();
+        }
+        return snapshot;
+    }
+
+    /**
+     * Maps the cached inventory into memory without decoding any record, or returns null
+     * if there is none or it can't be read. The reader keeps seeing the file as it was
+     * when it was opened, and is safe to use from any thread.
+     */
+    public synchronized Reader open() {
+        if (!mFile.exists()) {
+            return null;
+        }
+        RandomAccessFile file = null;
+        try {
+            file = new RandomAccessFile(mFile, "r");
+            FileChannel channel = file.getChannel();
+            // the mapping stays valid after the channel is closed
+            return new Reader(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        } catch (IOException e) {
+            Log.w(TAG, "Discarding unreadable inventory cache.", e);
+        } catch (BufferUnderflowException e) {
+            Log.w(TAG, "Discarding truncated inventory cache.", e);
+        } catch (IndexOutOfBoundsException e) {
+            Log.w(TAG, "Discarding corrupt inventory cache.", e);
+        } catch (IllegalArgumentException e) {
+            Log.w(TAG, "Discarding corrupt inventory cache.", e);
+        } finally {
+            closeQuietly(file);
+        }
+        mFile.delete();
+        return null;
+    }
+
+    /**
+     * Replaces the cached inventory with the given one.
+     */
+    public synchronized void save(InventorySnapshot snapshot) {
+        StringTable strings = new StringTable();
+        ByteArrayOutputStream recordBytes = new ByteArrayOutputStream();
+        DataOutputStream records = new DataOutputStream(recordBytes);
+        ByteArrayOutputStream fieldBytes = new ByteArrayOutputStream();
+        DataOutputStream fields = new DataOutputStream(fieldBytes);
+
+        File tmp = new File(mFile.getPath() + ".tmp");
+        DataOutputStream out = null;
+        try {
+            Map<String, Purchase> purchases = snapshot.getPurchaseMap();
+            long[] purchaseIndex = new long[purchases.size()];
+            int i = 0;
+            for (Map.Entry<String, Purchase> entry : purchases.entrySet()) {
+                Purchase p = entry.getValue();
+                writeString(fields, entry.getKey());
+                fields.writeInt(strings.ref(p.getItemType()));
+                fields.writeInt(strings.ref(p.getPackageName()));
+                writeString(fields, p.getSku());
+                writeString(fields, p.getOrderId());
+                writeString(fields, p.getToken());
+                writeString(fields, p.getDeveloperPayload());
+                fields.writeLong(p.getPurchaseTime());
+                fields.writeInt(p.getPurchaseState());
+                writeString(fields, p.getOriginalJson());
+                writeString(fields, p.getSignature());
+                purchaseIndex[i++] = indexEntry(entry.getKey(), records.size());
+                writeRecord(records, fieldBytes);
+            }
+
+            long[] productIndex = new long[snapshot.getProducts().size()];
+            i = 0;
+            for (SkuDetails d : snapshot.getProducts()) {
+                writeString(fields, d.getSku());
+                fields.writeInt(strings.ref(d.mItemType));
+                fields.writeInt(strings.ref(d.getType()));
+                writeString(fields, d.getPrice());
+                writeString(fields, d.getTitle());
+                writeString(fields, d.getDescription());
+                writeString(fields, d.mJson);
+                productIndex[i++] = indexEntry(d.getSku(), records.size());
+                writeRecord(records, fieldBytes);
+            }
+
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+            out.writeInt(FILE_MAGIC);
+            out.writeInt(FILE_VERSION);
+            out.writeInt(strings.mValues.size());
+            for (String value : strings.mValues) {
+                writeString(out, value);
+            }
+            writeIndex(out, purchaseIndex);
+            writeIndex(out, productIndex);
+            recordBytes.writeTo(out);
+            out.close();
+            out = null;
+            if (!tmp.renameTo(mFile)) {
+                throw new IOException("Can't rename " + tmp + " to " + mFile);
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to write inventory cache.", e);
+            tmp.delete();
+        } finally {
+            closeQuietly(out);
+        }
+    }
+
+    public synchronized void clear() {
+        mFile.delete();
+    }
+
+    // Packs an index entry so that sorting the entries sorts them by hash
+    private static long indexEntry(String sku, int offset) {
+        return ((long) hash(sku) << 32) | (offset & 0xffffffffL);
+    }
+
+    private static int hash(String sku) {
+        return sku == null ? 0 : sku.hashCode();
+    }
+
+    private static void writeIndex(DataOutputStream out, long[] index) throws IOException {
+        Arrays.sort(index);
+        out.writeInt(index.length);
+        for (long entry : index) {
+            out.writeLong(entry);
+        }
+    }
+
+    private static void writeRecord(DataOutputStream records, ByteArrayOutputStream fields)
+            throws IOException {
+        records.writeInt(fields.size());
+        fields.writeTo(records);
+        fields.reset();
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes(UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(ByteBuffer in) {
+        int length = in.getInt();
+        if (length < 0) {
+            return null;
+        } else if (length > in.remaining()) {
+            throw new BufferUnderflowException();
+        }
+        byte[] bytes = new byte[length];
+        in.get(bytes);
+        return new String(bytes, UTF_8);
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    // Interns the strings that repeat across records
+    private static class StringTable {
+        final List<String> mValues = new ArrayList<String>();
+        final Map<String, Integer> mRefs = new HashMap<String, Integer>();
+
+        int ref(String value) {
+            if (value == null) {
+                return -1;
+            }
+            Integer ref = mRefs.get(value);
+            if (ref == null) {
+                ref = mValues.size();
+                mValues.add(value);
+                mRefs.put(value, ref);
+            }
+            return ref;
+        }
+    }
+
+    /**
+     * Read-only view of a memory-mapped cache file. Records are decoded when they are
+     * asked for; a record that turns out to be corrupt reads as missing.
+     */
+    public static final class Reader {
+        private final ByteBuffer mBuffer;
+        private final String[] mStrings;
+        private final int mPurchaseCount;
+        private final int mPurchaseIndex;
+        private final int mProductCount;
+        private final int mProductIndex;
+        private final int mRecords;
+
+        Reader(ByteBuffer buffer) throws IOException {
+            mBuffer = buffer;
+            ByteBuffer in = buffer.duplicate();
+            if (in.getInt() != FILE_MAGIC || in.getInt() != FILE_VERSION) {
+                throw new IOException("Unknown inventory cache format.");
+            }
+            int count = in.getInt();
+            if (count < 0 || count > in.remaining()) {
+                throw new IOException("Corrupt string table.");
+            }
+            mStrings = new String[count];
+            for (int i = 0; i < count; i++) {
+                mStrings[i] = readString(in);
+            }
+            mPurchaseCount = readIndexCount(in);
+            mPurchaseIndex = in.position();
+            in.position(mPurchaseIndex + mPurchaseCount * INDEX_ENTRY_SIZE);
+            mProductCount = readIndexCount(in);
+            mProductIndex = in.position();
+            in.position(mProductIndex + mProductCount * INDEX_ENTRY_SIZE);
+            mRecords = in.position();
+        }
+
+        private static int readIndexCount(ByteBuffer in) throws IOException {
+            int count = in.getInt();
+            if (count < 0 || count > in.remaining() / INDEX_ENTRY_SIZE) {
+                throw new IOException("Corrupt index.");
+            }
+            return count;
+        }
+
+        public int getPurchaseCount() {
+            return mPurchaseCount;
+        }
+
+        public int getProductCount() {
+            return mProductCount;
+        }
+
+        public boolean hasPurchase(String sku) {
+            return getPurchase(sku) != null;
+        }
+
+        /**
+         * Returns the cached purchase of the given product, or null.
+         */
+        public Purchase getPurchase(String sku) {
+            try {
+                int record = find(mPurchaseIndex, mPurchaseCount, sku);
+                return record < 0 ? null : readPurchase(record(record));
+            } catch (BufferUnderflowException e) {
+                return null;
+            } catch (IndexOutOfBoundsException e) {
+                return null;
+            } catch (IllegalArgumentException e) {
+                return null;
+            }
+        }
+
+        /**
+         * Returns the cached details of the given product, or null.
+         */
+        public SkuDetails getSkuDetails(String sku) {
+            try {
+                int record = find(mProductIndex, mProductCount, sku);
+                return record < 0 ? null : readSkuDetails(record(record));
+            } catch (BufferUnderflowException e) {
+                return null;
+            } catch (IndexOutOfBoundsException e) {
+                return null;
+            } catch (IllegalArgumentException e) {
+                return null;
+            }
+        }
+
+        /**
+         * Decodes every record into a stale snapshot, or returns null if the file is corrupt.
+         */
+        public InventorySnapshot toSnapshot() {
+            try {
+                InventorySnapshot.Builder builder = new InventorySnapshot.Builder().setStale(true);
+                int position = mRecords;
+                for (int i = 0; i < mPurchaseCount; i++) {
+                    ByteBuffer record = record(position);
+                    position = record.limit();
+                    String sku = readString(record.duplicate());
+                    builder.addPurchase(sku, readPurchase(record));
+                }
+                for (int i = 0; i < mProductCount; i++) {
+                    ByteBuffer record = record(position);
+                    position = record.limit();
+                    builder.addSkuDetails(readSkuDetails(record));
+                }
+                return builder.build();
+            } catch (BufferUnderflowException e) {
+                Log.w(TAG, "Truncated inventory cache.", e);
+            } catch (IndexOutOfBoundsException e) {
+                Log.w(TAG, "Corrupt inventory cache.", e);
+            } catch (IllegalArgumentException e) {
+                Log.w(TAG, "Corrupt inventory cache.", e);
+            }
+            return null;
+        }
+
+        // Returns the position of the record stored under sku, or -1
+        private int find(int index, int count, String sku) {
+            int hash = hash(sku);
+            // first entry whose hash is not below the one we're looking for
+            int low = 0;
+            int high = count - 1;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                if (mBuffer.getInt(index + mid * INDEX_ENTRY_SIZE) < hash) {
+                    low = mid + 1;
+                } else {
+                    high = mid - 1;
+                }
+            }
+            for (int i = low; i < count; i++) {
+                int entry = index + i * INDEX_ENTRY_SIZE;
+                if (mBuffer.getInt(entry) != hash) {
+                    break;
+                }
+                int record = mRecords + mBuffer.getInt(entry + 4);
+                String recordSku = readString(record(record));
+                if (sku == null ? recordSku == null : sku.equals(recordSku)) {
+                    return record;
+                }
+            }
+            return -1;
+        }
+
+        // Returns the fields of the record at position, limited to that record
+        private ByteBuffer record(int position) {
+            ByteBuffer in = mBuffer.duplicate();
+            in.position(position);
+            int length = in.getInt();
+            if (length < 0 || length > in.remaining()) {
+                throw new BufferUnderflowException();
+            }
+            in.limit(in.position() + length);
+            return in;
+        }
+
+        private String ref(ByteBuffer in) {
+            int ref = in.getInt();
+            return ref < 0 ? null : mStrings[ref];
+        }
+
+        private Purchase readPurchase(ByteBuffer in) {
+            String key = readString(in);
+            String itemType = ref(in);
+            String packageName = ref(in);
+            String sku = readString(in);
+            if (key == null ? sku != null : !key.equals(sku)) {
+                throw new IllegalArgumentException("Purchase of " + sku + " stored under " + key);
+            }
+            String orderId = readString(in);
+            String token = readString(in);
+            String developerPayload = readString(in);
+            long purchaseTime = in.getLong();
+            int purchaseState = in.getInt();
+            String originalJson = readString(in);
+            String signature = readString(in);
+            return new Purchase(itemType, orderId, packageName, sku, purchaseTime, purchaseState,
+                    developerPayload, token, originalJson, signature);
+        }
+
+        private SkuDetails readSkuDetails(ByteBuffer in) {
+            String sku = readString(in);
+            String itemType = ref(in);
+            String type = ref(in);
+            String price = readString(in);
+            String title = readString(in);
+            String description = readString(in);
+            String json = readString(in);
+            return new SkuDetails(itemType, sku, type, price, title, description, json);
+        }
+    }
+}
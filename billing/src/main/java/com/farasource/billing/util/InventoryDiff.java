@@ -0,0 +1,132 @@
+package com.farasource.billing.util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Purchases that differ between two inventory snapshots. Purchases are matched by
+ * product ID and purchase token: a purchase whose token changed (the item was consumed
+ * and bought again) shows up as removed and added, one whose token is the same but whose
+ * data or signature changed (e.g. its purchase state) shows up as changed.
+ */
+public final class InventoryDiff {
+
+    private final List<Purchase> mAdded;
+    private final List<Purchase> mRemoved;
+    private final List<Purchase> mChanged;
+    private final boolean mProductsChanged;
+
+    private InventoryDiff(List<Purchase> added, List<Purchase> removed, List<Purchase> changed,
+                          boolean productsChanged) {
+        mAdded = Collections.unmodifiableList(added);
+        mRemoved = Collections.unmodifiableList(removed);
+        mChanged = Collections.unmodifiableList(changed);
+        mProductsChanged = productsChanged;
+    }
+
+    /**
+     * Compares two snapshots. Purchases whose JSON and signature are unchanged are
+     * skipped without being parsed.
+     *
+     * @param before the older snapshot, or null for an empty one
+     * @param after  the newer snapshot, or null for an empty one
+     */
+    public static InventoryDiff between(InventorySnapshot before, InventorySnapshot after) {
+        if (before == null) before = InventorySnapshot.EMPTY;
+        if (after == null) after = InventorySnapshot.EMPTY;
+
+        List<Purchase> added = new ArrayList<Purchase>();
+        List<Purchase> removed = new ArrayList<Purchase>();
+        List<Purchase> changed = new ArrayList<Purchase>();
+        boolean productsChanged = false;
+        if (before != after) {
+            for (Map.Entry<String, Purchase> entry : after.getPurchaseMap().entrySet()) {
+                Purchase now = entry.getValue();
+                Purchase then = before.getPurchase(entry.getKey());
+                if (then == null) {
+                    added.add(now);
+                } else if (then == now || sameData(then, now)) {
+                    // unchanged
+                } else if (!then.getToken().equals(now.getToken())) {
+                    removed.add(then);
+                    added.add(now);
+                } else {
+                    changed.add(now);
+                }
+            }
+            for (Map.Entry<String, Purchase> entry : before.getPurchaseMap().entrySet()) {
+                if (!after.hasPurchase(entry.getKey())) {
+                    removed.add(entry.getValue());
+                }
+            }
+            productsChanged = productsChanged(before, after);
+        }
+        return new InventoryDiff(added, removed, changed, productsChanged);
+    }
+
+    private static boolean productsChanged(InventorySnapshot before, InventorySnapshot after) {
+        if (before.getProducts().size() != after.getProducts().size()) {
+            return true;
+        }
+        for (SkuDetails now : after.getProducts()) {
+            SkuDetails then = before.getSkuDetails(now.getSku());
+            if (then == null || !equal(then.mJson, now.mJson)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean sameData(Purchase a, Purchase b) {
+        return equal(a.getOriginalJson(), b.getOriginalJson())
+                && equal(a.getSignature(), b.getSignature());
+    }
+
+    private static boolean equal(String a, String b) {
+        return a == null ? b == null : a.equals(b);
+    }
+
+    /**
+     * Returns the purchases that are only in the newer snapshot.
+     */
+    public List<Purchase> getAdded() {
+        return mAdded;
+    }
+
+    /**
+     * Returns the purchases that are only in the older snapshot.
+     */
+    public List<Purchase> getRemoved() {
+        return mRemoved;
+    }
+
+    /**
+     * Returns the newer version of every purchase that is in both snapshots but changed.
+     */
+    public List<Purchase> getChanged() {
+        return mChanged;
+    }
+
+    /**
+     * Returns whether the SKU details (prices, titles, ...) differ between the snapshots.
+     * Product changes don't count towards {@link #isEmpty()}.
+     */
+    public boolean productsChanged() {
+        return mProductsChanged;
+    }
+
+    /**
+     * Returns whether no purchase was added, removed or changed.
+     */
+    public boolean isEmpty() {
+        return mAdded.isEmpty() && mRemoved.isEmpty() && mChanged.isEmpty();
+    }
+
+    @Override
+    public String toString() {
+        return "InventoryDiff(added:" + mAdded.size() + ", removed:" + mRemoved.size()
+                + ", changed:" + mChanged.size() + ")";
+    }
+}
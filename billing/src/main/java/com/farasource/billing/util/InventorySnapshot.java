@@ -0,0 +1,276 @@
+package com.farasource.billing.util;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Immutable view of an inventory at one point in time. A snapshot never changes once
+ * built, so it can be read from any thread without locking; changes are made by building
+ * a new snapshot with a {@link Builder} and publishing it, see {@link Inventory}.
+ */
+public final class InventorySnapshot {
+
+    public static final InventorySnapshot EMPTY = new Builder().build();
+
+    private final Map<String, SkuDetails> mSkuMap;
+    private final Map<String, Purchase> mPurchaseMap;
+    // Owned purchases grouped by item type
+    private final Map<String, Map<String, Purchase>> mTypeIndex;
+    private final List<Purchase> mVerificationFailures;
+    private final Map<String, IabResult> mSkuDetailsFailures;
+    private final boolean mStale;
+
+    private InventorySnapshot(Builder builder) {
+        mSkuMap = Collections.unmodifiableMap(builder.mSkuMap);
+        mPurchaseMap = Collections.unmodifiableMap(builder.mPurchaseMap);
+        for (Map.Entry<String, Map<String, Purchase>> entry : builder.mTypeIndex.entrySet()) {
+            entry.setValue(Collections.unmodifiableMap(entry.getValue()));
+        }
+        mTypeIndex = builder.mTypeIndex;
+        mVerificationFailures = Collections.unmodifiableList(builder.mVerificationFailures);
+        mSkuDetailsFailures = Collections.unmodifiableMap(builder.mSkuDetailsFailures);
+        mStale = builder.mStale;
+    }
+
+    /**
+     * Returns whether this inventory was not queried from the market in this process,
+     * but restored from an {@link InventoryCache}. A stale inventory may be out of date.
+     */
+    public boolean isStale() {
+        return mStale;
+    }
+
+    /**
+     * Returns the listing details for an in-app product.
+     */
+    public SkuDetails getSkuDetails(String sku) {
+        return mSkuMap.get(sku);
+    }
+
+    /**
+     * Returns purchase information for a given product, or null if there is no purchase.
+     */
+    public Purchase getPurchase(String sku) {
+        return mPurchaseMap.get(sku);
+    }
+
+    /**
+     * Returns whether or not there exists a purchase of the given product.
+     */
+    public boolean hasPurchase(String sku) {
+        return mPurchaseMap.containsKey(sku);
+    }
+
+    /**
+     * Return whether or not details about the given product are available.
+     */
+    public boolean hasDetails(String sku) {
+        return mSkuMap.containsKey(sku);
+    }
+
+    /**
+     * Returns the owned product IDs.
+     */
+    public Set<String> getOwnedSkus() {
+        return mPurchaseMap.keySet();
+    }
+
+    /**
+     * Returns the owned product IDs of a given type.
+     */
+    public Set<String> getOwnedSkus(String itemType) {
+        return typeIndex(itemType).keySet();
+    }
+
+    /**
+     * Returns all owned purchases.
+     */
+    public Collection<Purchase> getPurchases() {
+        return mPurchaseMap.values();
+    }
+
+    /**
+     * Returns the owned purchases of a given type.
+     */
+    public Collection<Purchase> getPurchases(String itemType) {
+        return typeIndex(itemType).values();
+    }
+
+    /**
+     * Returns all products.
+     */
+    public Collection<SkuDetails> getProducts() {
+        return mSkuMap.values();
+    }
+
+    /**
+     * Returns the purchases that were returned by the market but whose signature
+     * could not be verified. These are not part of the owned purchases.
+     */
+    public List<Purchase> getVerificationFailures() {
+        return mVerificationFailures;
+    }
+
+    public boolean hasVerificationFailures() {
+        return !mVerificationFailures.isEmpty();
+    }
+
+    /**
+     * Returns the SKUs whose details could not be queried, with the result of the failed
+     * request. Details of the other SKUs are available as usual.
+     */
+    public Map<String, IabResult> getSkuDetailsFailures() {
+        return mSkuDetailsFailures;
+    }
+
+    public boolean hasSkuDetailsFailures() {
+        return !mSkuDetailsFailures.isEmpty();
+    }
+
+    // Owned purchases by product ID
+    Map<String, Purchase> getPurchaseMap() {
+        return mPurchaseMap;
+    }
+
+    private Map<String, Purchase> typeIndex(String itemType) {
+        Map<String, Purchase> index = mTypeIndex.get(itemType);
+        return index != null ? index : Collections.<String, Purchase>emptyMap();
+    }
+
+    /**
+     * Collects the contents of a new snapshot. A builder is meant to be used by one
+     * thread and only once: it can't be changed after {@link #build()}.
+     */
+    public static final class Builder {
+        private HashMap<String, SkuDetails> mSkuMap;
+        private HashMap<String, Purchase> mPurchaseMap;
+        private HashMap<String, Map<String, Purchase>> mTypeIndex;
+        private ArrayList<Purchase> mVerificationFailures;
+        private HashMap<String, IabResult> mSkuDetailsFailures;
+        private boolean mStale = false;
+        private boolean mBuilt = false;
+
+        public Builder() {
+            mSkuMap = new HashMap<String, SkuDetails>();
+            mPurchaseMap = new HashMap<String, Purchase>();
+            mTypeIndex = new HashMap<String, Map<String, Purchase>>();
+            mVerificationFailures = new ArrayList<Purchase>();
+            mSkuDetailsFailures = new HashMap<String, IabResult>();
+        }
+
+        /**
+         * Starts from a copy of the contents of {@code base}.
+         */
+        public Builder(InventorySnapshot base) {
+            mSkuMap = new HashMap<String, SkuDetails>(base.mSkuMap);
+            mPurchaseMap = new HashMap<String, Purchase>(base.mPurchaseMap);
+            mTypeIndex = new HashMap<String, Map<String, Purchase>>();
+            for (Map.Entry<String, Map<String, Purchase>> entry : base.mTypeIndex.entrySet()) {
+                mTypeIndex.put(entry.getKey(), new HashMap<String, Purchase>(entry.getValue()));
+            }
+            mVerificationFailures = new ArrayList<Purchase>(base.mVerificationFailures);
+            mSkuDetailsFailures = new HashMap<String, IabResult>(base.mSkuDetailsFailures);
+            mStale = base.mStale;
+        }
+
+        public Builder setStale(boolean stale) {
+            checkNotBuilt();
+            mStale = stale;
+            return this;
+        }
+
+        public Builder addSkuDetails(SkuDetails d) {
+            checkNotBuilt();
+            mSkuMap.put(d.getSku(), d);
+            return this;
+        }
+
+        public Builder addPurchase(Purchase p) {
+            return addPurchase(p.getSku(), p);
+        }
+
+        /**
+         * Adds a purchase under the product ID the market reported for it, without
+         * reading it from the purchase itself (which would parse a lazy purchase).
+         */
+        public Builder addPurchase(String sku, Purchase p) {
+            checkNotBuilt();
+            Purchase previous = mPurchaseMap.put(sku, p);
+            if (previous != null) {
+                typeIndex(previous.getItemType()).remove(sku);
+            }
+            typeIndex(p.getItemType()).put(sku, p);
+            return this;
+        }
+
+        public Builder erasePurchase(String sku) {
+            checkNotBuilt();
+            Purchase p = mPurchaseMap.remove(sku);
+            if (p != null) {
+                typeIndex(p.getItemType()).remove(sku);
+            }
+            return this;
+        }
+
+        public Builder addVerificationFailure(Purchase p) {
+            checkNotBuilt();
+            mVerificationFailures.add(p);
+            return this;
+        }
+
+        public Builder addSkuDetailsFailure(String sku, IabResult result) {
+            checkNotBuilt();
+            mSkuDetailsFailures.put(sku, result);
+            return this;
+        }
+
+        /**
+         * Adds the purchases, details and failures of another snapshot,
+         * replacing entries for the same product IDs.
+         */
+        public Builder addAll(InventorySnapshot other) {
+            checkNotBuilt();
+            for (Map.Entry<String, Purchase> entry : other.mPurchaseMap.entrySet()) {
+                addPurchase(entry.getKey(), entry.getValue());
+            }
+            mSkuMap.putAll(other.mSkuMap);
+            mVerificationFailures.addAll(other.mVerificationFailures);
+            mSkuDetailsFailures.putAll(other.mSkuDetailsFailures);
+            return this;
+        }
+
+        /**
+         * Returns the product IDs of a given type added so far.
+         */
+        public Set<String> getOwnedSkus(String itemType) {
+            checkNotBuilt();
+            return Collections.unmodifiableSet(typeIndex(itemType).keySet());
+        }
+
+        public InventorySnapshot build() {
+            checkNotBuilt();
+            mBuilt = true;
+            return new InventorySnapshot(this);
+        }
+
+        private Map<String, Purchase> typeIndex(String itemType) {
+            Map<String, Purchase> index = mTypeIndex.get(itemType);
+            if (index == null) {
+                index = new HashMap<String, Purchase>();
+                mTypeIndex.put(itemType, index);
+            }
+            return index;
+        }
+
+        private void checkNotBuilt() {
+            if (mBuilt) {
+                throw new IllegalStateException("build() was already called on this builder.");
+            }
+        }
+    }
+}
@@ -0,0 +1,382 @@
+package com.farasource.billing.util;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Pulls a fixed set of top-level keys out of a JSON object in one forward pass,
+ * without building a map of every key or boxing numbers the caller doesn't need.
+ * <p>
+ * The scanner is deliberately strict: it only handles plain JSON, with string values,
+ * canonical integers and {@code true}/{@code false} for the requested keys, each given
+ * once. Anything else (fractions, {@code null}, lenient syntax, nested values under a
+ * requested key, duplicate requested keys, ...) makes it fall back to {@link JSONObject},
+ * so the {@code opt*} methods always return what the same calls on a {@code JSONObject}
+ * would, and malformed input throws the same {@link JSONException}.
+ */
+final class JsonFieldScanner {
+
+    private static final byte MISSING = 0;
+    private static final byte STRING = 1;
+    private static final byte NUMBER = 2;
+    private static final byte LITERAL = 3; // true or false
+
+    // Longest integer literal that always fits in a long
+    private static final int MAX_NUMBER_DIGITS = 18;
+
+    private final String[] mKeys;
+    private final String[] mValues;
+    private final byte[] mKinds;
+    private JSONObject mFallback;
+
+    private JsonFieldScanner(String[] keys) {
+        mKeys = keys;
+        mValues = new String[keys.length];
+        mKinds = new byte[keys.length];
+    }
+
+    /**
+     * Scans {@code json} for the given keys. Values are then read by the index of
+     * their key in {@code keys}.
+     *
+     * @throws JSONException if {@code json} is not a JSON object
+     */
+    static JsonFieldScanner scan(String json, String[] keys) throws JSONException {
+        JsonFieldScanner scanner = new JsonFieldScanner(keys);
+        if (json == null || !scanner.scanObject(json)) {
+            scanner.mFallback = new JSONObject(json);
+        }
+        return scanner;
+    }
+
+    /**
+     * Same as {@link JSONObject#optString(String)}.
+     */
+    String optString(int key) {
+        return optString(key, "");
+    }
+
+    /**
+     * Same as {@link JSONObject#optString(String, String)}.
+     */
+    String optString(int key, String fallback) {
+        if (mFallback != null) {
+            return mFallback.optString(mKeys[key], fallback);
+        }
+        return mKinds[key] == MISSING ? fallback : mValues[key];
+    }
+
+    /**
+     * Same as {@link JSONObject#optLong(String)}.
+     */
+    long optLong(int key) {
+        if (mFallback != null) {
+            return mFallback.optLong(mKeys[key]);
+        }
+        switch (mKinds[key]) {
+            case NUMBER:
+                return Long.parseLong(mValues[key]);
+            case STRING:
+                try {
+                    return (long) Double.parseDouble(mValues[key]);
+                } catch (NumberFormatException e) {
+                    return 0;
+                }
+            default:
+                return 0;
+        }
+    }
+
+    /**
+     * Same as {@link JSONObject#optInt(String)}.
+     */
+    int optInt(int key) {
+        if (mFallback != null) {
+            return mFallback.optInt(mKeys[key]);
+        }
+        switch (mKinds[key]) {
+            case NUMBER:
+                return (int) Long.parseLong(mValues[key]);
+            case STRING:
+                try {
+                    return (int) Double.parseDouble(mValues[key]);
+                } catch (NumberFormatException e) {
+                    return 0;
+                }
+            default:
+                return 0;
+        }
+    }
+
+    // Returns false as soon as the input is anything but plain, well-formed JSON.
+    private boolean scanObject(String json) {
+        int length = json.length();
+        int pos = skipWhitespace(json, 0);
+        if (pos >= length || json.charAt(pos) != '{') {
+            return false;
+        }
+        pos = skipWhitespace(json, pos + 1);
+        if (pos < length && json.charAt(pos) == '}') {
+            return true;
+        }
+
+        while (true) {
+            if (pos >= length || json.charAt(pos) != '"') {
+                return false;
+            }
+            int keyEnd = findStringEnd(json, pos + 1);
+            if (keyEnd < 0) {
+                return false;
+            }
+            int key = findKey(json, pos + 1, keyEnd);
+
+            pos = skipWhitespace(json, keyEnd + 1);
+            if (pos >= length || json.charAt(pos) != ':') {
+                return false;
+            }
+            pos = skipWhitespace(json, pos + 1);
+            pos = key >= 0 ? readValue(json, pos, key) : skipValue(json, pos);
+            if (pos < 0) {
+                return false;
+            }
+
+            pos = skipWhitespace(json, pos);
+            if (pos >= length) {
+                return false;
+            }
+            char c = json.charAt(pos);
+            if (c == '}') {
+                // like JSONObject, ignore whatever follows the object
+                return true;
+            } else if (c != ',') {
+                return false;
+            }
+            pos = skipWhitespace(json, pos + 1);
+        }
+    }
+
+    // Returns the index of the requested key spelled by json[start, end), or -1.
+    private int findKey(String json, int start, int end) {
+        int length = end - start;
+        int escape = json.indexOf('\\', start);
+        if (escape >= 0 && escape < end) {
+            String decoded = decodeString(json, start, end);
+            for (int i = 0; i < mKeys.length; i++) {
+                if (mKeys[i].equals(decoded)) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+        for (int i = 0; i < mKeys.length; i++) {
+            if (mKeys[i].length() == length && json.regionMatches(start, mKeys[i], 0, length)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    // Reads the value of a requested key; returns the position after it or -1.
+    private int readValue(String json, int pos, int key) {
+        if (pos >= json.length()) {
+            return -1;
+        }
+        if (mKinds[key] != MISSING) {
+            // JSONObject implementations disagree on duplicate keys; let the one we run on decide
+            return -1;
+        }
+        if (json.charAt(pos) == '"') {
+            int end = findStringEnd(json, pos + 1);
+            if (end < 0) {
+                return -1;
+            }
+            mValues[key] = decodeString(json, pos + 1, end);
+            mKinds[key] = STRING;
+            return end + 1;
+        }
+
+        int end = literalEnd(json, pos);
+        if (end <= pos) {
+            return -1;
+        }
+        int length = end - pos;
+        // null is left to JSONObject too, as optString reads it differently across versions
+        if (length == 4 && json.startsWith("true", pos) || length == 5 && json.startsWith("false", pos)) {
+            mValues[key] = json.substring(pos, end);
+            mKinds[key] = LITERAL;
+            return end;
+        }
+        if (!isCanonicalInteger(json, pos, end)) {
+            return -1;
+        }
+        mValues[key] = json.substring(pos, end);
+        mKinds[key] = NUMBER;
+        return end;
+    }
+
+    // Matches -?(0|[1-9][0-9]*) short enough for a long, except "-0" which JSONObject
+    // turns into "0".
+    private static boolean isCanonicalInteger(String json, int start, int end) {
+        int pos = start;
+        if (json.charAt(pos) == '-') {
+            pos++;
+        }
+        int digits = end - pos;
+        if (digits == 0 || digits > MAX_NUMBER_DIGITS) {
+            return false;
+        }
+        if (json.charAt(pos) == '0') {
+            return digits == 1 && pos == start;
+        }
+        for (int i = pos; i < end; i++) {
+            char c = json.charAt(i);
+            if (c < '0' || c > '9') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Skips the value of a key nobody asked for; returns the position after it or -1.
+    private static int skipValue(String json, int pos) {
+        int length = json.length();
+        if (pos >= length) {
+            return -1;
+        }
+        char first = json.charAt(pos);
+        if (first == '"') {
+            int end = findStringEnd(json, pos + 1);
+            return end < 0 ? -1 : end + 1;
+        }
+        if (first != '{' && first != '[') {
+            int end = literalEnd(json, pos);
+            return end <= pos ? -1 : end;
+        }
+
+        int depth = 0;
+        while (pos < length) {
+            char c = json.charAt(pos);
+            if (c == '"') {
+                int end = findStringEnd(json, pos + 1);
+                if (end < 0) {
+                    return -1;
+                }
+                pos = end + 1;
+                continue;
+            }
+            if (c == '{' || c == '[') {
+                depth++;
+            } else if (c == '}' || c == ']') {
+                if (--depth == 0) {
+                    return pos + 1;
+                }
+            } else if (c == '\'' || c == '/' || c == '#' || c == '=' || c == ';') {
+                // lenient syntax JSONObject would read differently; let it do so
+                return -1;
+            }
+            pos++;
+        }
+        return -1;
+    }
+
+    // End of an unquoted literal; only characters of numbers and true/false/null count.
+    private static int literalEnd(String json, int pos) {
+        int length = json.length();
+        while (pos < length) {
+            char c = json.charAt(pos);
+            if ((c >= '0' && c <= '9') || (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z')
+                    || c == '-' || c == '+' || c == '.') {
+                pos++;
+            } else {
+                break;
+            }
+        }
+        if (pos < length) {
+            char c = json.charAt(pos);
+            if (c != ',' && c != '}' && c != ']' && c != ' ' && c != '\t' && c != '\n' && c != '\r') {
+                return -1;
+            }
+        }
+        return pos;
+    }
+
+    // Index of the closing quote of the string whose contents start at pos, or -1 if
+    // the string is unterminated or has an incomplete unicode escape.
+    private static int findStringEnd(String json, int pos) {
+        int length = json.length();
+        while (pos < length) {
+            char c = json.charAt(pos);
+            if (c == '"') {
+                return pos;
+            } else if (c != '\\') {
+                pos++;
+            } else if (pos + 1 < length && json.charAt(pos + 1) == 'u') {
+                for (int i = pos + 2; i < pos + 6; i++) {
+                    if (i >= length || Character.digit(json.charAt(i), 16) < 0) {
+                        return -1;
+                    }
+                }
+                pos += 6;
+            } else {
+                pos += 2;
+            }
+        }
+        return -1;
+    }
+
+    // Decodes the contents of a string literal checked by findStringEnd.
+    private static String decodeString(String json, int start, int end) {
+        int escape = json.indexOf('\\', start);
+        if (escape < 0 || escape >= end) {
+            return json.substring(start, end);
+        }
+        StringBuilder builder = new StringBuilder(end - start);
+        builder.append(json, start, escape);
+        int pos = escape;
+        while (pos < end) {
+            char c = json.charAt(pos++);
+            if (c != '\\') {
+                builder.append(c);
+                continue;
+            }
+            char escaped = json.charAt(pos++);
+            switch (escaped) {
+                case 'u':
+                    builder.append((char) Integer.parseInt(json.substring(pos, pos + 4), 16));
+                    pos += 4;
+                    break;
+                case 't':
+                    builder.append('\t');
+                    break;
+                case 'b':
+                    builder.append('\b');
+                    break;
+                case 'n':
+                    builder.append('\n');
+                    break;
+                case 'r':
+                    builder.append('\r');
+                    break;
+                case 'f':
+                    builder.append('\f');
+                    break;
+                default:
+                    builder.append(escaped);
+                    break;
+            }
+        }
+        return builder.toString();
+    }
+
+    private static int skipWhitespace(String json, int pos) {
+        int length = json.length();
+        while (pos < length) {
+            char c = json.charAt(pos);
+            if (c != ' ' && c != '\t' && c != '\n' && c != '\r') {
+                break;
+            }
+            pos++;
+        }
+        return pos;
+    }
+}
@@ -0,0 +1,144 @@
+package com.farasource.billing.util;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.pm.ApplicationInfo;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager;
+import android.net.Uri;
+import android.os.Bundle;
+
+/**
+ * The market this app is built for, as declared in its manifest metadata, and whether and in
+ * which version that market is installed. It is looked up once per process, since every
+ * lookup is an IPC to the package manager, and looked up again after the market package is
+ * installed, updated or removed.
+ */
+public final class MarketInfo {
+
+    private static final String META_DATA_BIND_ADDRESS = "market_bind_address";
+    private static final String META_DATA_MARKET_ID = "market_id";
+
+    private static volatile MarketInfo sCached;
+    private static boolean sReceiverRegistered = false;
+
+    private final String mMarketId;
+    private final String mBindAddress;
+    private final long mVersionCode;
+
+    private MarketInfo(String marketId, String bindAddress, long versionCode) {
+        mMarketId = marketId;
+        mBindAddress = bindAddress;
+        mVersionCode = versionCode;
+    }
+
+    /**
+     * Returns the market info, looking it up if this is the first call or the market package
+     * changed since the last lookup.
+     */
+    public static MarketInfo get(Context context) {
+        MarketInfo info = sCached;
+        if (info != null) {
+            return info;
+        }
+        synchronized (MarketInfo.class) {
+            if (sCached == null) {
+                Context appContext = context.getApplicationContext() != null
+                        ? context.getApplicationContext() : context;
+                // register first, so that a change during the lookup isn't missed
+                registerPackageReceiver(appContext);
+                sCached = resolve(appContext);
+            }
+            return sCached;
+        }
+    }
+
+    /**
+     * Drops the cached info; the next {@link #get} looks it up again.
+     */
+    public static void invalidate() {
+        synchronized (MarketInfo.class) {
+            sCached = null;
+        }
+    }
+
+    private static MarketInfo resolve(Context context) {
+        PackageManager pm = context.getPackageManager();
+        String marketId = "";
+        String bindAddress = "";
+        try {
+            ApplicationInfo applicationInfo = pm.getApplicationInfo(context.getPackageName(),
+                    PackageManager.GET_META_DATA);
+            Bundle bundle = applicationInfo.metaData;
+            if (bundle != null) {
+                // "" rather than null when the entry is missing or not a string
+                marketId = bundle.getString(META_DATA_MARKET_ID, "");
+                bindAddress = bundle.getString(META_DATA_BIND_ADDRESS, "");
+            }
+        } catch (PackageManager.NameNotFoundException ignored) {
+        }
+
+        long versionCode = -1;
+        if (marketId.length() > 0) {
+            try {
+                PackageInfo pInfo = pm.getPackageInfo(marketId, 0);
+                if (android.os.Build.VERSION.SDK_INT >= android.os.Build.VERSION_CODES.P) {
+                    versionCode = pInfo.getLongVersionCode();
+                } else {
+                    versionCode = pInfo.versionCode;
+                }
+            } catch (PackageManager.NameNotFoundException ignored) {
+            }
+        }
+        return new MarketInfo(marketId, bindAddress, versionCode);
+    }
+
+    private static void registerPackageReceiver(Context context) {
+        if (sReceiverRegistered) {
+            return;
+        }
+        IntentFilter filter = new IntentFilter();
+        filter.addAction(Intent.ACTION_PACKAGE_ADDED);
+        filter.addAction(Intent.ACTION_PACKAGE_REPLACED);
+        filter.addAction(Intent.ACTION_PACKAGE_REMOVED);
+        filter.addDataScheme("package");
+        context.registerReceiver(new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context context, Intent intent) {
+                Uri data = intent.getData();
+                MarketInfo info = sCached;
+                if (data != null && info != null && data.getSchemeSpecificPart().equals(info.mMarketId)) {
+                    invalidate();
+                }
+            }
+        }, filter);
+        sReceiverRegistered = true;
+    }
+
+    /**
+     * Returns the market package name from the manifest metadata, or "" if there is none.
+     */
+    public String getMarketId() {
+        return mMarketId;
+    }
+
+    /**
+     * Returns the billing service action from the manifest metadata, or "" if there is none.
+     */
+    public String getBindAddress() {
+        return mBindAddress;
+    }
+
+    public boolean isMarketInstalled() {
+        return mVersionCode >= 0;
+    }
+
+    /**
+     * Returns the version code of the installed market, or -1 if it isn't installed.
+     */
+    public long getVersionCode() {
+        return mVersionCode;
+    }
+}
@@ -0,0 +1,174 @@
+package com.farasource.billing.util;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Queues billing operations instead of refusing them while another one is in progress.
+ * Shared operations (e.g. reads against the billing service) run concurrently with each
+ * other; an exclusive operation (e.g. the purchase UI) runs alone. Operations start in
+ * the order they were submitted, so a waiting exclusive operation is not starved by
+ * shared ones submitted after it.
+ * <p>
+ * An operation may finish asynchronously: it is handed a {@code done} callback and counts
+ * as running until that is called. Operations are started on the thread that submitted
+ * them or on the thread that finished the operation before them, so they should hand off
+ * any long work to another thread.
+ */
+public final class OperationScheduler {
+
+    private final IABLogger mLogger;
+    private final ArrayDeque<Pending> mQueue = new ArrayDeque<Pending>();
+    private int mRunningShared = 0;
+    private boolean mRunningExclusive = false;
+
+    public OperationScheduler(IABLogger logger) {
+        mLogger = logger;
+    }
+
+    /**
+     * Runs an operation that may overlap with other shared operations.
+     */
+    public void runShared(String name, Operation operation) {
+        submit(new Pending(name, operation, false));
+    }
+
+    /**
+     * Runs an operation once nothing else is running, and keeps others from starting
+     * until it is done.
+     */
+    public void runExclusive(String name, Operation operation) {
+        submit(new Pending(name, operation, true));
+    }
+
+    private void submit(Pending pending) {
+        synchronized (mQueue) {
+            mQueue.add(pending);
+            if (mQueue.size() > 1 || mRunningExclusive || (pending.mExclusive && mRunningShared > 0)) {
+                mLogger.logDebug("Queuing operation: " + pending.mName);
+            }
+        }
+        startReady();
+    }
+
+    /**
+     * Drops every operation that hasn't started yet, calling {@link Operation#cancel()} on
+     * each. Running operations are left alone.
+     */
+    public void cancelQueued() {
+        List<Pending> dropped;
+        synchronized (mQueue) {
+            dropped = new ArrayList<Pending>(mQueue);
+            mQueue.clear();
+        }
+        RuntimeException failure = null;
+        for (Pending pending : dropped) {
+            mLogger.logDebug("Cancelling operation: " + pending.mName);
+            try {
+                pending.mOperation.cancel();
+            } catch (RuntimeException e) {
+                // the others still have to hear about it
+                if (failure == null) {
+                    failure = e;
+                }
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    // Starts the operations at the head of the queue that may run now
+    private void startReady() {
+        List<Pending> ready = new ArrayList<Pending>();
+        synchronized (mQueue) {
+            while (!mQueue.isEmpty() && !mRunningExclusive) {
+                Pending head = mQueue.peek();
+                if (head.mExclusive) {
+                    if (mRunningShared > 0) {
+                        break;
+                    }
+                    mRunningExclusive = true;
+                } else {
+                    mRunningShared++;
+                }
+                ready.add(mQueue.poll());
+            }
+        }
+        RuntimeException failure = null;
+        for (Pending pending : ready) {
+            try {
+                pending.start();
+            } catch (RuntimeException e) {
+                // the others still have to start; the failed one already gave its turn back
+                if (failure == null) {
+                    failure = e;
+                }
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    private void finish(Pending pending) {
+        synchronized (mQueue) {
+            if (pending.mExclusive) {
+                mRunningExclusive = false;
+            } else {
+                mRunningShared--;
+            }
+        }
+        mLogger.logDebug("Ending operation: " + pending.mName);
+        startReady();
+    }
+
+    public interface Operation {
+        /**
+         * Starts the operation. {@code done} must be called exactly once when it is over;
+         * later calls are ignored.
+         */
+        void run(Runnable done);
+
+        /**
+         * Called instead of {@link #run} when the operation is dropped before it started.
+         */
+        void cancel();
+    }
+
+    private final class Pending {
+        final String mName;
+        final Operation mOperation;
+        final boolean mExclusive;
+
+        Pending(String name, Operation operation, boolean exclusive) {
+            mName = name;
+            mOperation = operation;
+            mExclusive = exclusive;
+        }
+
+        void start() {
+            mLogger.logDebug("Starting operation: " + mName);
+            final AtomicBoolean finished = new AtomicBoolean();
+            Runnable done = new Runnable() {
+                @Override
+                public void run() {
+                    if (finished.compareAndSet(false, true)) {
+                        finish(Pending.this);
+                    }
+                }
+            };
+            boolean started = false;
+            try {
+                mOperation.run(done);
+                started = true;
+            } finally {
+                if (!started) {
+                    done.run();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package com.farasource.billing.util;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Runs a batch of independent, indexed tasks on an {@link Executor} and blocks until
+ * all of them are done. The calling thread works through the batch as well, so a
+ * batch always completes even if the executor is saturated or rejects work.
+ */
+public final class ParallelBatch {
+
+    private ParallelBatch() {
+    }
+
+    /**
+     * Runs {@code task} once for every index in {@code [0, count)}, using at most
+     * {@code parallelism} threads including the calling one.
+     *
+     * @throws RuntimeException the first exception thrown by a task, after the whole
+     *                          batch has finished
+     */
+    public static void run(Executor executor, final int count, int parallelism, final Task task) {
+        if (count <= 0) {
+            return;
+        }
+        final AtomicInteger next = new AtomicInteger();
+        final CountDownLatch done = new CountDownLatch(count);
+        final AtomicReference<RuntimeException> failure = new AtomicReference<RuntimeException>();
+
+        Runnable worker = new Runnable() {
+            @Override
+            public void run() {
+                int index;
+                while ((index = next.getAndIncrement()) < count) {
+                    try {
+                        task.run(index);
+                    } catch (RuntimeException e) {
+                        failure.compareAndSet(null, e);
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }
+        };
+
+        int helpers = Math.min(parallelism, count) - 1;
+        for (int i = 0; i < helpers; i++) {
+            try {
+                executor.execute(worker);
+            } catch (RejectedExecutionException e) {
+                break;
+            }
+        }
+        worker.run();
+
+        boolean interrupted = false;
+        while (true) {
+            try {
+                done.await();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+
+        RuntimeException e = failure.get();
+        if (e != null) {
+            throw e;
+        }
+    }
+
+    public interface Task {
+        void run(int index);
+    }
+}
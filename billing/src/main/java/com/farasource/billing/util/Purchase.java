@@ -16,12 +16,28 @@
 package com.farasource.billing.util;
 
 import org.json.JSONException;
-import org.json.JSONObject;
 
 /**
  * Represents an in-app billing purchase.
  */
 public class Purchase {
+    // Keys read from the purchase JSON, indexed by the constants below
+    private static final String[] JSON_KEYS = {"orderId", "packageName", "productId", "purchaseTime",
+            "purchaseState", "developerPayload", "token", "purchaseToken"};
+    private static final int ORDER_ID = 0;
+    private static final int PACKAGE_NAME = 1;
+    private static final int PRODUCT_ID = 2;
+    private static final int PURCHASE_TIME = 3;
+    private static final int PURCHASE_STATE = 4;
+    private static final int DEVELOPER_PAYLOAD = 5;
+    private static final int TOKEN = 6;
+    private static final int PURCHASE_TOKEN = 7;
+    // The keys createLazy reads right away, indexed by the constants below
+    private static final String[] EAGER_KEYS = {"productId", "token", "purchaseToken"};
+    private static final int EAGER_PRODUCT_ID = 0;
+    private static final int EAGER_TOKEN = 1;
+    private static final int EAGER_PURCHASE_TOKEN = 2;
+
     public String mItemType;  // ITEM_TYPE_INAPP or ITEM_TYPE_SUBS
     String mOrderId;
     String mPackageName;
@@ -32,19 +48,80 @@ public class Purchase {
     String mToken;
     String mOriginalJson;
     String mSignature;
+    // Whether all fields above were parsed from mOriginalJson (see createLazy)
+    private volatile boolean mParsed;
 
     public Purchase(String itemType, String jsonPurchaseInfo, String signature) throws JSONException {
         mItemType = itemType;
         mOriginalJson = jsonPurchaseInfo;
-        JSONObject o = new JSONObject(mOriginalJson);
-        mOrderId = o.optString("orderId");
-        mPackageName = o.optString("packageName");
-        mSku = o.optString("productId");
-        mPurchaseTime = o.optLong("purchaseTime");
-        mPurchaseState = o.optInt("purchaseState");
-        mDeveloperPayload = o.optString("developerPayload");
-        mToken = o.optString("token", o.optString("purchaseToken"));
         mSignature = signature;
+        parse(JsonFieldScanner.scan(mOriginalJson, JSON_KEYS));
+    }
+
+    private Purchase(String itemType, String jsonPurchaseInfo, String signature, JsonFieldScanner eager) {
+        mItemType = itemType;
+        mOriginalJson = jsonPurchaseInfo;
+        mSignature = signature;
+        mSku = eager.optString(EAGER_PRODUCT_ID);
+        mToken = eager.optString(EAGER_TOKEN, eager.optString(EAGER_PURCHASE_TOKEN));
+    }
+
+    // Creates a purchase from fields that were already parsed, e.g. by InventoryCache
+    Purchase(String itemType, String orderId, String packageName, String sku, long purchaseTime,
+             int purchaseState, String developerPayload, String token, String originalJson,
+             String signature) {
+        mItemType = itemType;
+        mOrderId = orderId;
+        mPackageName = packageName;
+        mSku = sku;
+        mPurchaseTime = purchaseTime;
+        mPurchaseState = purchaseState;
+        mDeveloperPayload = developerPayload;
+        mToken = token;
+        mOriginalJson = originalJson;
+        mSignature = signature;
+        mParsed = true;
+    }
+
+    /**
+     * Creates a purchase that reads only the SKU and the token right away, and parses the
+     * other fields the first time one of them is read. Getters return the same values as
+     * for a purchase created through the constructor.
+     *
+     * @throws JSONException if the purchase JSON is malformed, like the constructor
+     */
+    public static Purchase createLazy(String itemType, String jsonPurchaseInfo, String signature)
+            throws JSONException {
+        return new Purchase(itemType, jsonPurchaseInfo, signature,
+                JsonFieldScanner.scan(jsonPurchaseInfo, EAGER_KEYS));
+    }
+
+    private void parse(JsonFieldScanner o) {
+        mOrderId = o.optString(ORDER_ID);
+        mPackageName = o.optString(PACKAGE_NAME);
+        mSku = o.optString(PRODUCT_ID);
+        mPurchaseTime = o.optLong(PURCHASE_TIME);
+        mPurchaseState = o.optInt(PURCHASE_STATE);
+        mDeveloperPayload = o.optString(DEVELOPER_PAYLOAD);
+        mToken = o.optString(TOKEN, o.optString(PURCHASE_TOKEN));
+        mParsed = true;
+    }
+
+    private void ensureParsed() {
+        if (mParsed) {
+            return;
+        }
+        synchronized (this) {
+            if (mParsed) {
+                return;
+            }
+            try {
+                parse(JsonFieldScanner.scan(mOriginalJson, JSON_KEYS));
+            } catch (JSONException e) {
+                // createLazy already read the same JSON without an error
+                throw new IllegalStateException(e);
+            }
+        }
     }
 
     public String getItemType() {
@@ -52,10 +129,12 @@ public class Purchase {
     }
 
     public String getOrderId() {
+        ensureParsed();
         return mOrderId;
     }
 
     public String getPackageName() {
+        ensureParsed();
         return mPackageName;
     }
 
@@ -64,14 +143,17 @@ public class Purchase {
     }
 
     public long getPurchaseTime() {
+        ensureParsed();
         return mPurchaseTime;
     }
 
     public int getPurchaseState() {
+        ensureParsed();
         return mPurchaseState;
     }
 
     public String getDeveloperPayload() {
+        ensureParsed();
         return mDeveloperPayload;
     }
 
@@ -87,6 +169,55 @@ public class Purchase {
         return mSignature;
     }
 
+    /**
+     * Returns whether the fields of this purchase are the ones in its original JSON. The
+     * signature only covers that JSON, so a purchase built from separately stored fields,
+     * e.g. by InventoryCache, must pass this before its signature vouches for it.
+     */
+    public boolean matchesOriginalJson() {
+        JsonFieldScanner o;
+        try {
+            o = JsonFieldScanner.scan(mOriginalJson, JSON_KEYS);
+        } catch (JSONException e) {
+            return false;
+        }
+        return equal(getSku(), o.optString(PRODUCT_ID))
+                && equal(getToken(), o.optString(TOKEN, o.optString(PURCHASE_TOKEN)))
+                && equal(getPackageName(), o.optString(PACKAGE_NAME))
+                && equal(getOrderId(), o.optString(ORDER_ID))
+                && equal(getDeveloperPayload(), o.optString(DEVELOPER_PAYLOAD))
+                && getPurchaseTime() == o.optLong(PURCHASE_TIME)
+                && getPurchaseState() == o.optInt(PURCHASE_STATE);
+    }
+
+    private static boolean equal(String a, String b) {
+        return a == null ? b == null : a.equals(b);
+    }
+
+    /**
+     * Verifies the signature of this purchase. If a memo is given it is consulted
+     * first, and a successful verification is recorded in it, so an unchanged
+     * purchase is only ever checked with RSA once.
+     *
+     * @param verifier the verifier holding the app's public key
+     * @param memo     memo of already verified signatures, or null
+     * @return true if the signature matches the purchase data
+     */
+    public boolean verifySignature(PurchaseVerifier verifier, VerifiedSignatureMemo memo) {
+        if (memo == null) {
+            return verifier.verifyPurchase(mOriginalJson, mSignature);
+        }
+        VerifiedSignatureMemo.Key key = memo.keyFor(verifier, mOriginalJson, mSignature);
+        if (memo.contains(key)) {
+            return true;
+        }
+        if (!verifier.verifyPurchase(mOriginalJson, mSignature)) {
+            return false;
+        }
+        memo.put(key);
+        return true;
+    }
+
     @Override
     public String toString() {
         return "PurchaseInfo(type:" + mItemType + "):" + mOriginalJson;
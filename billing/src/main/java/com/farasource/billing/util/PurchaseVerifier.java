@@ -0,0 +1,148 @@
+package com.farasource.billing.util;
+
+import android.text.TextUtils;
+import android.util.Log;
+
+import java.security.InvalidKeyException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.security.SignatureException;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Reusable counterpart of {@link Security}. The public key is decoded and parsed once
+ * per instance and every thread keeps its own {@link Signature}, so verifying a whole
+ * inventory costs one RSA verification per purchase and nothing more.
+ * <p>
+ * Instances are thread-safe. Use {@link #getInstance(String)} to share one verifier
+ * per public key across the process.
+ */
+public class PurchaseVerifier {
+    private static final String TAG = "IABUtil/PurchaseVerifier";
+
+    private static final String SIGNATURE_ALGORITHM = "SHA1withRSA";
+
+    private static final ConcurrentHashMap<String, PurchaseVerifier> sVerifiers =
+            new ConcurrentHashMap<String, PurchaseVerifier>();
+
+    private final PublicKey mPublicKey;
+    private final byte[] mKeyFingerprint;
+    private final ThreadLocal<Signature> mSignature = new ThreadLocal<Signature>() {
+        @Override
+        protected Signature initialValue() {
+            try {
+                Signature sig = Signature.getInstance(SIGNATURE_ALGORITHM);
+                sig.initVerify(mPublicKey);
+                return sig;
+            } catch (NoSuchAlgorithmException e) {
+                Log.e(TAG, "NoSuchAlgorithmException.");
+            } catch (InvalidKeyException e) {
+                Log.e(TAG, "Invalid key specification.");
+            }
+            return null;
+        }
+    };
+
+    /**
+     * Creates a verifier for the given Base64-encoded public key.
+     *
+     * @param base64PublicKey the base64-encoded public key to use for verifying.
+     * @throws IllegalArgumentException if the key is empty or invalid
+     */
+    public PurchaseVerifier(String base64PublicKey) {
+        this(Security.generatePublicKey(base64PublicKey));
+    }
+
+    public PurchaseVerifier(PublicKey publicKey) {
+        if (publicKey == null) {
+            throw new IllegalArgumentException("publicKey can't be null.");
+        }
+        mPublicKey = publicKey;
+        try {
+            mKeyFingerprint = MessageDigest.getInstance("SHA-256").digest(publicKey.getEncoded());
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Returns the shared verifier for the given Base64-encoded public key, parsing
+     * the key only the first time it is seen.
+     *
+     * @throws IllegalArgumentException if the key is empty or invalid
+     */
+    public static PurchaseVerifier getInstance(String base64PublicKey) {
+        if (TextUtils.isEmpty(base64PublicKey)) {
+            throw new IllegalArgumentException("base64PublicKey can't be empty.");
+        }
+        PurchaseVerifier verifier = sVerifiers.get(base64PublicKey);
+        if (verifier == null) {
+            verifier = new PurchaseVerifier(base64PublicKey);
+            PurchaseVerifier existing = sVerifiers.putIfAbsent(base64PublicKey, verifier);
+            if (existing != null) {
+                verifier = existing;
+            }
+        }
+        return verifier;
+    }
+
+    public PublicKey getPublicKey() {
+        return mPublicKey;
+    }
+
+    // SHA-256 of the encoded public key
+    byte[] keyFingerprint() {
+        return mKeyFingerprint;
+    }
+
+    /**
+     * Same as {@link Security#verifyPurchase(String, String, String)}, using the key
+     * this verifier was created with.
+     *
+     * @param signedData the signed JSON string (signed, not encrypted)
+     * @param signature  the signature for the data, signed with the private key
+     */
+    public boolean verifyPurchase(String signedData, String signature) {
+        if (TextUtils.isEmpty(signedData) || TextUtils.isEmpty(signature)) {
+            Log.e(TAG, "Purchase verification failed: missing data.");
+            return false;
+        }
+        return verify(signedData, signature);
+    }
+
+    /**
+     * Same as {@link Security#verify(PublicKey, String, String)}, using the key
+     * this verifier was created with.
+     *
+     * @param signedData signed data from server
+     * @param signature  server signature
+     * @return true if the data and signature match
+     */
+    public boolean verify(String signedData, String signature) {
+        Signature sig = mSignature.get();
+        if (sig == null) {
+            return false;
+        }
+        try {
+            // A Signature returns to the initialized-for-verify state after verify(),
+            // and update() never leaves it half-used unless it throws.
+            sig.update(signedData.getBytes());
+            byte[] decoded = Security.signatureBuffer(signature.length());
+            int length = Base64.decode(signature, decoded, 0);
+            if (!sig.verify(decoded, 0, length)) {
+                Log.e(TAG, "Signature verification failed.");
+                return false;
+            }
+            return true;
+        } catch (SignatureException e) {
+            Log.e(TAG, "Signature exception.");
+        } catch (Base64DecoderException e) {
+            Log.e(TAG, "Base64 decoding failed.");
+        }
+        // Something threw half-way; start the next call from a clean instance.
+        mSignature.remove();
+        return false;
+    }
+}
@@ -42,6 +42,14 @@ public class Security {
     private static final String KEY_FACTORY_ALGORITHM = "RSA";
     private static final String SIGNATURE_ALGORITHM = "SHA1withRSA";
 
+    // Per-thread scratch buffer for decoded signatures; 512 bytes fit RSA keys up to 4096 bits
+    private static final ThreadLocal<byte[]> sSignatureBuffer = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[512];
+        }
+    };
+
     /**
      * Verifies that the data was signed with the given signature, and returns
      * the verified purchase. The data is in JSON format and signed
@@ -101,7 +109,9 @@ public class Security {
             sig = Signature.getInstance(SIGNATURE_ALGORITHM);
             sig.initVerify(publicKey);
             sig.update(signedData.getBytes());
-            if (!sig.verify(Base64.decode(signature))) {
+            byte[] decoded = signatureBuffer(signature.length());
+            int length = Base64.decode(signature, decoded, 0);
+            if (!sig.verify(decoded, 0, length)) {
                 Log.e(TAG, "Signature verification failed.");
                 return false;
             }
@@ -117,4 +127,18 @@ public class Security {
         }
         return false;
     }
+
+    /**
+     * Returns this thread's buffer for decoding a signature of the given Base64 length,
+     * growing it if needed.
+     */
+    static byte[] signatureBuffer(int encodedLength) {
+        byte[] buffer = sSignatureBuffer.get();
+        int needed = Base64.maxDecodedLength(encodedLength);
+        if (buffer.length < needed) {
+            buffer = new byte[needed];
+            sSignatureBuffer.set(buffer);
+        }
+        return buffer;
+    }
 }
@@ -16,6 +16,8 @@ import android.os.RemoteException;
 import com.android.vending.billing.IInAppBillingService;
 
 import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
 
 import com.farasource.billing.BillingHelper;
 import com.farasource.billing.BillingLauncher;
@@ -37,26 +39,37 @@ public class ServiceIAB extends IAB {
     // Keys for the response from getPurchaseConfig
     private static final String INTENT_V2_SUPPORT = "INTENT_V2_SUPPORT";
     // Connection to the service
-    private IInAppBillingService mService;
+    private volatile IInAppBillingService mService;
     private ServiceConnection mServiceConn;
-    // Is an asynchronous operation in progress?
-    // (only one at a time can be in progress)
-    private boolean mAsyncInProgress = false;
-    // (for logging/debugging)
-    // if mAsyncInProgress == true, what asynchronous operation is in progress?
-    private String mAsyncOperation = "";
+    // Whether bindService succeeded, so that dispose unbinds even before the service connected
+    private boolean mBound = false;
+    // INTENT_V2_SUPPORT of the current connection, or null until known; guarded by this
+    private Boolean mIntentV2Supported;
+    // Runs the purchase config prefetch
+    private Executor mExecutor = BoundedExecutor.defaultPool();
 
     public ServiceIAB(IABLogger logger, String packageName, String bindAddress) {
         super(logger, packageName, bindAddress);
     }
 
+    /**
+     * Sets the executor the purchase config is fetched on after connecting. Call before
+     * {@link #connect}.
+     */
+    public void setExecutor(Executor executor) {
+        mExecutor = executor;
+    }
+
     public void connect(Context context, final OnServiceConnectListener listener) {
         logger.logDebug("Starting in-app billing setup.");
         mServiceConn = new ServiceConnection() {
             @Override
             public void onServiceDisconnected(final ComponentName name) {
                 logger.logDebug("Billing service disconnected.");
-                mService = null;
+                synchronized (ServiceIAB.this) {
+                    mService = null;
+                    mIntentV2Supported = null;
+                }
             }
 
             @Override
@@ -66,7 +79,12 @@ public class ServiceIAB extends IAB {
                     return;
                 }
                 mSetupDone = true;
-                mService = IInAppBillingService.Stub.asInterface(service);
+                IInAppBillingService billingService = IInAppBillingService.Stub.asInterface(service);
+                synchronized (ServiceIAB.this) {
+                    mService = billingService;
+                    mIntentV2Supported = null;
+                }
+                prefetchPurchaseConfig(billingService);
                 listener.connected();
             }
         };
@@ -79,6 +97,7 @@ public class ServiceIAB extends IAB {
         if (intentServices != null && !intentServices.isEmpty()) {
             try {
                 boolean result = context.bindService(serviceIntent, mServiceConn, Context.BIND_AUTO_CREATE);
+                mBound = result;
                 if (!result) {
                     listener.couldNotConnect();
                 }
@@ -130,12 +149,10 @@ public class ServiceIAB extends IAB {
     public void launchPurchaseFlow(Context mContext, BillingLauncher billingLauncher, String sku, String itemType,
                                    BillingHelper.OnIabPurchaseFinishedListener listener, String extraData) {
 
-        flagStartAsync("launchPurchaseFlow");
         IabResult result;
         if (itemType.equals(ITEM_TYPE_SUBS) && !mSubscriptionsSupported) {
             IabResult r = new IabResult(IABHELPER_SUBSCRIPTIONS_NOT_AVAILABLE,
                     "Subscriptions are not available.");
-            flagEndAsync();
             if (listener != null) {
                 listener.onIabPurchaseFinished(r, null);
             }
@@ -145,8 +162,7 @@ public class ServiceIAB extends IAB {
         try {
             logger.logDebug("Constructing buy intent for " + sku + ", item type: " + itemType);
 
-            Bundle configBundle = mService.getPurchaseConfig(apiVersion);
-            if (configBundle != null && configBundle.getBoolean(INTENT_V2_SUPPORT)) {
+            if (isIntentV2Supported()) {
                 logger.logDebug("launchBuyIntentV2 for " + sku + ", item type: " + itemType);
                 launchBuyIntentV2(mContext, billingLauncher, sku, itemType, listener, extraData);
             } else {
@@ -156,7 +172,6 @@ public class ServiceIAB extends IAB {
         } catch (IntentSender.SendIntentException e) {
             logger.logError("SendIntentException while launching purchase flow for sku " + sku);
             e.printStackTrace();
-            flagEndAsync();
 
             result = new IabResult(IABHELPER_SEND_INTENT_FAILED, "Failed to send intent.");
             if (listener != null) {
@@ -165,7 +180,6 @@ public class ServiceIAB extends IAB {
         } catch (RemoteException e) {
             logger.logError("RemoteException while launching purchase flow for sku " + sku);
             e.printStackTrace();
-            flagEndAsync();
 
             result = new IabResult(IABHELPER_REMOTE_EXCEPTION,
                     "Remote exception while starting purchase flow");
@@ -190,7 +204,6 @@ public class ServiceIAB extends IAB {
         int response = getResponseCodeFromBundle(buyIntentBundle);
         if (response != BILLING_RESPONSE_RESULT_OK) {
             logger.logError("Unable to buy item, Error response: " + getResponseDesc(response));
-            flagEndAsync();
             IabResult result = new IabResult(response, "Unable to buy item");
             if (listener != null) {
                 listener.onIabPurchaseFinished(result, null);
@@ -220,7 +233,6 @@ public class ServiceIAB extends IAB {
         int response = getResponseCodeFromBundle(buyIntentBundle);
         if (response != BILLING_RESPONSE_RESULT_OK) {
             logger.logError("Unable to buy item, Error response: " + getResponseDesc(response));
-            flagEndAsync();
             IabResult result = new IabResult(response, "Unable to buy item");
             if (listener != null) {
                 listener.onIabPurchaseFinished(result, null);
@@ -236,6 +248,46 @@ public class ServiceIAB extends IAB {
         billingLauncher.startIntent(pendingIntent);
     }
 
+    // Reads the purchase config off the main thread, so that launching a purchase doesn't
+    // have to wait for it
+    private void prefetchPurchaseConfig(final IInAppBillingService service) {
+        try {
+            mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        readPurchaseConfig(service);
+                    } catch (RemoteException e) {
+                        logger.logDebug("Couldn't prefetch the purchase config: " + e);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // launchPurchaseFlow reads it then
+        }
+    }
+
+    private boolean isIntentV2Supported() throws RemoteException {
+        synchronized (this) {
+            if (mIntentV2Supported != null) {
+                return mIntentV2Supported;
+            }
+        }
+        return readPurchaseConfig(mService);
+    }
+
+    private boolean readPurchaseConfig(IInAppBillingService service) throws RemoteException {
+        Bundle configBundle = service.getPurchaseConfig(apiVersion);
+        boolean supported = configBundle != null && configBundle.getBoolean(INTENT_V2_SUPPORT);
+        synchronized (this) {
+            // only keep it if the service wasn't reconnected in the meantime
+            if (service == mService) {
+                mIntentV2Supported = supported;
+            }
+        }
+        return supported;
+    }
+
     @Override
     public void consume(Context context, Purchase itemInfo) throws IabException {
         try {
@@ -274,31 +326,25 @@ public class ServiceIAB extends IAB {
                 itemType, querySkus);
     }
 
+    // Binder calls are thread-safe
     @Override
-    public void flagStartAsync(String operation) {
-        if (mAsyncInProgress) throw new IllegalStateException("Can't start async operation (" +
-                operation + ") because another async operation(" + mAsyncOperation + ") is in progress.");
-        mAsyncOperation = operation;
-        mAsyncInProgress = true;
-        logger.logDebug("Starting async operation: " + operation);
-    }
-
-    @Override
-    public void flagEndAsync() {
-        logger.logDebug("Ending async operation: " + mAsyncOperation);
-        mAsyncOperation = "";
-        mAsyncInProgress = false;
+    public boolean supportsConcurrentRequests() {
+        return true;
     }
 
     @Override
     public void dispose(Context context) {
         logger.logDebug("Unbinding from service.");
-        if (context != null && mService != null) {
+        if (context != null && mBound) {
             context.unbindService(mServiceConn);
+            mBound = false;
         }
         mPurchaseListener = null;
         mServiceConn = null;
-        mService = null;
+        synchronized (this) {
+            mService = null;
+            mIntentV2Supported = null;
+        }
         super.dispose(context);
     }
 }
\ No newline at end of file
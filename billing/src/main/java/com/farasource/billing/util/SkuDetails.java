@@ -24,6 +24,14 @@ import com.farasource.billing.BillingHelper;
  * Represents an in-app product's listing details.
  */
 public class SkuDetails {
+    // Keys read from the details JSON, indexed by the constants below
+    private static final String[] JSON_KEYS = {"productId", "type", "price", "title", "description"};
+    private static final int PRODUCT_ID = 0;
+    private static final int TYPE = 1;
+    private static final int PRICE = 2;
+    private static final int TITLE = 3;
+    private static final int DESCRIPTION = 4;
+
     String mItemType;
     String mSku;
     String mType;
@@ -39,12 +47,24 @@ public class SkuDetails {
     public SkuDetails(String itemType, String jsonSkuDetails) throws JSONException {
         mItemType = itemType;
         mJson = jsonSkuDetails;
-        JSONObject o = new JSONObject(mJson);
-        mSku = o.optString("productId");
-        mType = o.optString("type");
-        mPrice = o.optString("price");
-        mTitle = o.optString("title");
-        mDescription = o.optString("description");
+        JsonFieldScanner o = JsonFieldScanner.scan(mJson, JSON_KEYS);
+        mSku = o.optString(PRODUCT_ID);
+        mType = o.optString(TYPE);
+        mPrice = o.optString(PRICE);
+        mTitle = o.optString(TITLE);
+        mDescription = o.optString(DESCRIPTION);
+    }
+
+    // Creates details from fields that were already parsed, e.g. by InventoryCache
+    SkuDetails(String itemType, String sku, String type, String price, String title,
+               String description, String json) {
+        mItemType = itemType;
+        mSku = sku;
+        mType = type;
+        mPrice = price;
+        mTitle = title;
+        mDescription = description;
+        mJson = json;
     }
 
     public String getSku() {
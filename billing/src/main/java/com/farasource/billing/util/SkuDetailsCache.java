@@ -0,0 +1,105 @@
+package com.farasource.billing.util;
+
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * In-memory cache of {@link SkuDetails}, so that inventory queries only ask the market for
+ * details that are missing or older than the time to live. Holds at most
+ * {@code maxEntries} details and evicts the least recently used ones first.
+ * <p>
+ * Expired entries are kept until they are evicted or replaced, so that fresh details can be
+ * compared with them: when the market returns details that differ from the cached ones for
+ * an item type, every cached entry of that type is dropped, since prices tend to change
+ * together (e.g. with a currency change). Times are passed in by the caller and only need
+ * to come from one monotonic clock. The cache is thread-safe.
+ */
+public class SkuDetailsCache {
+
+    private final long mTtlMillis;
+    private final int mMaxEntries;
+    private final LinkedHashMap<String, Entry> mEntries;
+
+    public SkuDetailsCache(long ttlMillis, final int maxEntries) {
+        if (ttlMillis <= 0 || maxEntries <= 0) {
+            throw new IllegalArgumentException("ttlMillis and maxEntries must be positive.");
+        }
+        mTtlMillis = ttlMillis;
+        mMaxEntries = maxEntries;
+        mEntries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                return size() > mMaxEntries;
+            }
+        };
+    }
+
+    private static String key(String itemType, String sku) {
+        return itemType + '\n' + sku;
+    }
+
+    /**
+     * Returns the cached details of a product, or null if there are none or they expired.
+     */
+    public synchronized SkuDetails get(String itemType, String sku, long now) {
+        Entry entry = mEntries.get(key(itemType, sku));
+        return entry != null && now < entry.mExpiresAt ? entry.mDetails : null;
+    }
+
+    /**
+     * Stores details that were just returned by the market for the given item type. If any
+     * of them differ from what was cached, the other entries of that type are dropped first.
+     *
+     * @return whether the market reported changed details
+     */
+    public synchronized boolean update(String itemType, Collection<SkuDetails> fresh, long now) {
+        boolean changed = false;
+        for (SkuDetails d : fresh) {
+            Entry entry = mEntries.get(key(itemType, d.getSku()));
+            if (entry != null && !equal(entry.mDetails.mJson, d.mJson)) {
+                changed = true;
+                break;
+            }
+        }
+        if (changed) {
+            invalidate(itemType);
+        }
+        long expiresAt = now + mTtlMillis;
+        for (SkuDetails d : fresh) {
+            mEntries.put(key(itemType, d.getSku()), new Entry(d, expiresAt));
+        }
+        return changed;
+    }
+
+    /**
+     * Drops the cached details of one item type.
+     */
+    public synchronized void invalidate(String itemType) {
+        String prefix = itemType + '\n';
+        for (Iterator<String> it = mEntries.keySet().iterator(); it.hasNext(); ) {
+            if (it.next().startsWith(prefix)) {
+                it.remove();
+            }
+        }
+    }
+
+    public synchronized void clear() {
+        mEntries.clear();
+    }
+
+    private static boolean equal(String a, String b) {
+        return a == null ? b == null : a.equals(b);
+    }
+
+    private static final class Entry {
+        final SkuDetails mDetails;
+        final long mExpiresAt;
+
+        Entry(SkuDetails details, long expiresAt) {
+            mDetails = details;
+            mExpiresAt = expiresAt;
+        }
+    }
+}
@@ -0,0 +1,275 @@
+package com.farasource.billing.util;
+
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Small on-disk memo of purchase signatures that already passed verification, so that
+ * purchases which did not change since the last start don't pay for RSA again.
+ * <p>
+ * Entries are keyed by an HMAC-SHA256 of the purchase JSON, its signature and the
+ * fingerprint of the verifying key, so a changed purchase or a different key always
+ * misses. The HMAC key is a random secret created on first use and kept in its own
+ * file, which should not be backed up; without it nobody can compute the entry of a
+ * purchase that was never verified. If the secret is lost a new one is made and the
+ * memo starts over. Only successful verifications are remembered. The memo keeps at most
+ * {@code maxEntries} digests and evicts the least recently used one first. It is loaded
+ * lazily on first use and written back by {@link #flush()}; both block, so don't call
+ * them from a UI thread.
+ */
+public class VerifiedSignatureMemo {
+    private static final String TAG = "IABUtil/SignatureMemo";
+
+    private static final int FILE_MAGIC = 0x49564d32; // "IVM2"
+    private static final String MAC_ALGORITHM = "HmacSHA256";
+    private static final int DIGEST_LENGTH = 32;
+    private static final int SECRET_LENGTH = 32;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final File mFile;
+    private final File mSecretFile;
+    private final int mMaxEntries;
+    private final ThreadLocal<Mac> mMac = new ThreadLocal<Mac>() {
+        @Override
+        protected Mac initialValue() {
+            try {
+                Mac mac = Mac.getInstance(MAC_ALGORITHM);
+                mac.init(new SecretKeySpec(secret(), MAC_ALGORITHM));
+                return mac;
+            } catch (GeneralSecurityException e) {
+                throw new RuntimeException(e);
+            }
+        }
+    };
+    private byte[] mSecret;
+    private final LinkedHashMap<Key, Boolean> mEntries;
+    private boolean mLoaded = false;
+    private boolean mDirty = false;
+
+    /**
+     * @param file       where the memo is kept
+     * @param secretFile where the HMAC secret is kept, preferably somewhere that is not
+     *                   backed up
+     * @param maxEntries how many verified signatures are remembered at most
+     */
+    public VerifiedSignatureMemo(File file, File secretFile, final int maxEntries) {
+        if (maxEntries <= 0) {
+            throw new IllegalArgumentException("maxEntries must be positive.");
+        }
+        mFile = file;
+        mSecretFile = secretFile;
+        mMaxEntries = maxEntries;
+        mEntries = new LinkedHashMap<Key, Boolean>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, Boolean> eldest) {
+                return size() > mMaxEntries;
+            }
+        };
+    }
+
+    /**
+     * Returns the memo key of a purchase signed with the given verifier's key. The first
+     * call reads or creates the secret, so it blocks on disk like {@link #contains(Key)}.
+     */
+    public Key keyFor(PurchaseVerifier verifier, String signedData, String signature) {
+        Mac mac = mMac.get();
+        mac.update(verifier.keyFingerprint());
+        update(mac, signedData);
+        update(mac, signature);
+        return new Key(mac.doFinal());
+    }
+
+    private static void update(Mac mac, String value) {
+        byte[] bytes = value == null ? new byte[0] : value.getBytes(UTF_8);
+        // length-prefix every part so that ("ab", "c") and ("a", "bc") differ
+        mac.update((byte) (bytes.length >>> 24));
+        mac.update((byte) (bytes.length >>> 16));
+        mac.update((byte) (bytes.length >>> 8));
+        mac.update((byte) bytes.length);
+        mac.update(bytes);
+    }
+
+    // Reads the HMAC secret, or creates a new one and drops the entries made with the old one
+    private synchronized byte[] secret() {
+        if (mSecret != null) {
+            return mSecret;
+        }
+        DataInputStream in = null;
+        try {
+            if (mSecretFile.length() == SECRET_LENGTH) {
+                byte[] secret = new byte[SECRET_LENGTH];
+                in = new DataInputStream(new FileInputStream(mSecretFile));
+                in.readFully(secret);
+                mSecret = secret;
+                return secret;
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to read signature memo secret.", e);
+        } finally {
+            closeQuietly(in);
+        }
+
+        byte[] secret = new byte[SECRET_LENGTH];
+        new SecureRandom().nextBytes(secret);
+        writeSecret(secret);
+        mSecret = secret;
+        // nothing remembered so far can match under the new secret
+        mEntries.clear();
+        mLoaded = true;
+        mDirty = true;
+        return secret;
+    }
+
+    private void writeSecret(byte[] secret) {
+        File tmp = new File(mSecretFile.getPath() + ".tmp");
+        FileOutputStream out = null;
+        try {
+            out = new FileOutputStream(tmp);
+            out.write(secret);
+            out.close();
+            out = null;
+            if (!tmp.renameTo(mSecretFile)) {
+                throw new IOException("Can't rename " + tmp + " to " + mSecretFile);
+            }
+        } catch (IOException e) {
+            // the secret still works for this process, the memo just won't outlive it
+            Log.w(TAG, "Failed to write signature memo secret.", e);
+            tmp.delete();
+        } finally {
+            closeQuietly(out);
+        }
+    }
+
+    /**
+     * Returns whether a purchase with this key was verified before.
+     */
+    public synchronized boolean contains(Key key) {
+        ensureLoaded();
+        return mEntries.get(key) != null;
+    }
+
+    /**
+     * Remembers that the purchase with this key passed verification.
+     */
+    public synchronized void put(Key key) {
+        ensureLoaded();
+        if (mEntries.put(key, Boolean.TRUE) == null) {
+            mDirty = true;
+        }
+    }
+
+    public synchronized void clear() {
+        mEntries.clear();
+        mLoaded = true;
+        mDirty = true;
+    }
+
+    /**
+     * Writes the memo back to disk if it changed since it was loaded.
+     */
+    public synchronized void flush() {
+        if (!mDirty) {
+            return;
+        }
+        File tmp = new File(mFile.getPath() + ".tmp");
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+            out.writeInt(FILE_MAGIC);
+            out.writeInt(mEntries.size());
+            // eldest first, so that loading restores the same LRU order
+            for (Key key : mEntries.keySet()) {
+                out.write(key.mDigest);
+            }
+            out.close();
+            out = null;
+            if (!tmp.renameTo(mFile)) {
+                throw new IOException("Can't rename " + tmp + " to " + mFile);
+            }
+            mDirty = false;
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to write signature memo.", e);
+            tmp.delete();
+        } finally {
+            closeQuietly(out);
+        }
+    }
+
+    private void ensureLoaded() {
+        if (mLoaded) {
+            return;
+        }
+        mLoaded = true;
+        if (!mFile.exists()) {
+            return;
+        }
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(mFile)));
+            if (in.readInt() != FILE_MAGIC) {
+                throw new IOException("Unknown signature memo format.");
+            }
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                byte[] digest = new byte[DIGEST_LENGTH];
+                in.readFully(digest);
+                mEntries.put(new Key(digest), Boolean.TRUE);
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Discarding unreadable signature memo.", e);
+            mEntries.clear();
+            mDirty = true;
+        } finally {
+            closeQuietly(in);
+        }
+    }
+
+    private static void closeQuietly(java.io.Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    /**
+     * Digest identifying one (purchase JSON, signature, key) triple.
+     */
+    public static final class Key {
+        final byte[] mDigest;
+        private final int mHash;
+
+        Key(byte[] digest) {
+            mDigest = digest;
+            mHash = Arrays.hashCode(digest);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Key && Arrays.equals(mDigest, ((Key) o).mDigest);
+        }
+
+        @Override
+        public int hashCode() {
+            return mHash;
+        }
+    }
+}
@@ -0,0 +1,152 @@
+package com.farasource.billing.util;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+/**
+ * Round-trips {@link Base64} against {@code java.util.Base64}, and checks that the byte,
+ * string and char sequence decoders agree on every input.
+ */
+public class Base64Test {
+
+    private static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+
+    @Test
+    public void roundTripsLikeJdk() throws Exception {
+        Random random = new Random(42);
+        for (int length = 0; length <= 64; length++) {
+            byte[] data = new byte[length];
+            random.nextBytes(data);
+
+            String expected = java.util.Base64.getEncoder().encodeToString(data);
+            assertEquals(expected, Base64.encode(data));
+            assertEquals(java.util.Base64.getUrlEncoder().encodeToString(data),
+                    Base64.encodeWebSafe(data, true));
+            assertEquals(java.util.Base64.getUrlEncoder().withoutPadding().encodeToString(data),
+                    Base64.encodeWebSafe(data, false));
+
+            byte[] encoded = new byte[Base64.encodedLength(length, true) + 2];
+            int written = Base64.encode(data, encoded, 1);
+            assertEquals(expected, new String(encoded, 1, written, ISO_8859_1));
+
+            ByteBuffer direct = ByteBuffer.allocateDirect(Base64.encodedLength(length, true));
+            Base64.encode(data, 0, length, direct);
+            direct.flip();
+            assertEquals(expected, ISO_8859_1.decode(direct).toString());
+
+            assertDecodes(data, expected);
+            assertArrayEquals(data, Base64.decodeWebSafe(Base64.encodeWebSafe(data, false)));
+        }
+    }
+
+    @Test
+    public void padding() throws Exception {
+        assertDecodes(bytes("A"), "QQ==");
+        assertDecodes(bytes("AB"), "QUI=");
+        assertDecodes(bytes("ABC"), "QUJD");
+        // padding may be left out, like java.util.Base64 allows
+        assertDecodes(bytes("A"), "QQ");
+        assertDecodes(bytes("AB"), "QUI");
+
+        assertRejected("=QQQ");
+        assertRejected("Q===");
+        assertRejected("QQ=A");
+        assertRejected("QUJD=");
+        assertRejected("Q");
+    }
+
+    @Test
+    public void whitespaceIsSkippedLikeMimeDecoder() throws Exception {
+        String[] inputs = {"QUJD\nREVG", "QU JD\tRE\r\nVG", " QUJDREVG", "QUJD\n"};
+        for (String input : inputs) {
+            assertDecodes(java.util.Base64.getMimeDecoder().decode(input), input);
+        }
+    }
+
+    @Test
+    public void badInputIsRejected() throws Exception {
+        String[] inputs = {"QU!D", "QUJD$", "QU-D", "QU_D", "QUJ\u00c4", "\u00c1UJD", "QUJ\u0141"};
+        for (String input : inputs) {
+            try {
+                java.util.Base64.getDecoder().decode(input);
+                fail("java.util.Base64 accepts " + input);
+            } catch (IllegalArgumentException expected) {
+                // the reference rejects it too
+            }
+            assertRejected(input);
+        }
+    }
+
+    @Test
+    public void highBytesAreNotMaskedIntoAscii() {
+        // 0xC1 is 'A' | 0x80; it used to decode like 'A' from bytes but fail from chars
+        byte[] source = {(byte) 0xc1, 'U', 'J', 'D'};
+        try {
+            Base64.decode(source);
+            fail("Non-ASCII byte was accepted.");
+        } catch (Base64DecoderException expected) {
+            // same as the char sequence decoder
+        }
+        try {
+            Base64.decode(new String(source, ISO_8859_1), new byte[8], 0);
+            fail("Non-ASCII char was accepted.");
+        } catch (Base64DecoderException expected) {
+            // same as the byte decoder
+        }
+    }
+
+    // Decodes input through every entry point and checks each gives expected
+    private static void assertDecodes(byte[] expected, String input) throws Base64DecoderException {
+        assertArrayEquals(input, expected, Base64.decode(input));
+        byte[] ascii = input.getBytes(ISO_8859_1);
+        assertArrayEquals(input, expected, Base64.decode(ascii));
+
+        byte[] destination = new byte[Base64.maxDecodedLength(input.length()) + 1];
+        int written = Base64.decode(input, destination, 1);
+        assertArrayEquals(input, expected, Arrays.copyOfRange(destination, 1, 1 + written));
+
+        written = Base64.decode(ascii, 0, ascii.length, destination, 0);
+        assertArrayEquals(input, expected, Arrays.copyOf(destination, written));
+
+        ByteBuffer buffer = ByteBuffer.allocateDirect(Base64.maxDecodedLength(input.length()));
+        Base64.decode(ascii, 0, ascii.length, buffer);
+        buffer.flip();
+        byte[] fromBuffer = new byte[buffer.remaining()];
+        buffer.get(fromBuffer);
+        assertArrayEquals(input, expected, fromBuffer);
+    }
+
+    // Checks that every entry point rejects input
+    private static void assertRejected(String input) {
+        try {
+            Base64.decode(input.getBytes(Charset.forName("UTF-8")));
+            fail("Byte decoder accepted " + input);
+        } catch (Base64DecoderException expected) {
+            // rejected
+        }
+        try {
+            Base64.decode(input.getBytes(ISO_8859_1));
+            fail("Byte decoder accepted " + input);
+        } catch (Base64DecoderException expected) {
+            // rejected
+        }
+        try {
+            Base64.decode(input, new byte[Base64.maxDecodedLength(input.length())], 0);
+            fail("Char sequence decoder accepted " + input);
+        } catch (Base64DecoderException expected) {
+            // rejected
+        }
+    }
+
+    private static byte[] bytes(String ascii) {
+        return ascii.getBytes(ISO_8859_1);
+    }
+}
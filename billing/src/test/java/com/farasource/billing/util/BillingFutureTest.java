@@ -0,0 +1,204 @@
+package com.farasource.billing.util;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static com.farasource.billing.BillingHelper.BILLING_RESPONSE_RESULT_OK;
+import static com.farasource.billing.BillingHelper.IABHELPER_CANCELLED;
+import static com.farasource.billing.BillingHelper.IABHELPER_TIMEOUT;
+import static com.farasource.billing.BillingHelper.IABHELPER_UNKNOWN_ERROR;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class BillingFutureTest {
+
+    private static final IabResult ERROR = new IabResult(IABHELPER_UNKNOWN_ERROR, "failed");
+
+    @Test
+    public void completesOnlyOnce() throws Exception {
+        BillingFuture<String> future = new BillingFuture<String>();
+        final List<String> heard = new ArrayList<String>();
+        future.addListener(new BillingFuture.Listener<String>() {
+            @Override
+            public void onComplete(IabResult result, String value) {
+                heard.add(value);
+            }
+        });
+
+        assertTrue(future.complete("first"));
+        assertFalse(future.complete("second"));
+        assertFalse(future.fail(ERROR));
+        assertFalse(future.cancel());
+
+        assertEquals("first", future.get());
+        assertEquals(1, heard.size());
+        assertFalse(future.isCancelled());
+    }
+
+    @Test
+    public void listenerAddedAfterCompletionRunsRightAway() {
+        BillingFuture<String> future = BillingFuture.completed("done");
+        final List<String> heard = new ArrayList<String>();
+        future.addListener(new BillingFuture.Listener<String>() {
+            @Override
+            public void onComplete(IabResult result, String value) {
+                assertEquals(BILLING_RESPONSE_RESULT_OK, result.getResponse());
+                heard.add(value);
+            }
+        });
+        assertEquals(1, heard.size());
+        assertEquals("done", heard.get(0));
+    }
+
+    @Test
+    public void failingListenerDoesNotStopTheOthers() {
+        BillingFuture<String> future = new BillingFuture<String>();
+        final List<String> heard = new ArrayList<String>();
+        future.addListener(new BillingFuture.Listener<String>() {
+            @Override
+            public void onComplete(IabResult result, String value) {
+                throw new IllegalStateException("listener bug");
+            }
+        });
+        future.addListener(new BillingFuture.Listener<String>() {
+            @Override
+            public void onComplete(IabResult result, String value) {
+                heard.add(value);
+            }
+        });
+        try {
+            future.complete("value");
+            fail("The listener's exception should be rethrown.");
+        } catch (IllegalStateException expected) {
+            // rethrown once every listener ran
+        }
+        assertEquals(1, heard.size());
+        assertTrue(future.isDone());
+    }
+
+    @Test
+    public void failureSkipsTransform() {
+        BillingFuture<String> source = new BillingFuture<String>();
+        BillingFuture<Integer> derived = source.then(new BillingFuture.Transform<String, Integer>() {
+            @Override
+            public Integer apply(String value) {
+                throw new AssertionError("must not run");
+            }
+        });
+        source.fail(ERROR);
+        assertEquals(IABHELPER_UNKNOWN_ERROR, derived.getResult().getResponse());
+    }
+
+    @Test
+    public void cancelPropagatesThroughThenCompose() {
+        BillingFuture<String> source = new BillingFuture<String>();
+        final BillingFuture<Integer> inner = new BillingFuture<Integer>();
+        BillingFuture<Integer> composed = source.thenCompose(new BillingFuture.Continuation<String, Integer>() {
+            @Override
+            public BillingFuture<Integer> apply(String value) {
+                return inner;
+            }
+        });
+
+        source.complete("value");
+        assertFalse(inner.isDone());
+        assertTrue(composed.cancel());
+
+        assertTrue(inner.isCancelled());
+        assertEquals(IABHELPER_CANCELLED, composed.getResult().getResponse());
+        // the inner operation finishing later doesn't change the outcome
+        assertFalse(inner.complete(1));
+        assertTrue(composed.isCancelled());
+    }
+
+    @Test
+    public void thenComposeCompletesWithInner() throws Exception {
+        BillingFuture<Integer> composed = BillingFuture.completed("four")
+                .thenCompose(new BillingFuture.Continuation<String, Integer>() {
+                    @Override
+                    public BillingFuture<Integer> apply(String value) {
+                        return BillingFuture.completed(value.length());
+                    }
+                });
+        assertEquals(Integer.valueOf(4), composed.get());
+    }
+
+    @Test
+    public void withTimeoutFailsAndCancelsSource() throws Exception {
+        BillingFuture<String> source = new BillingFuture<String>();
+        BillingFuture<String> timed = source.withTimeout(50, TimeUnit.MILLISECONDS);
+        try {
+            timed.get(5, TimeUnit.SECONDS);
+            fail("Expected a timeout.");
+        } catch (IabException e) {
+            assertEquals(IABHELPER_TIMEOUT, e.getResult().getResponse());
+        }
+        assertTrue(source.isCancelled());
+    }
+
+    @Test
+    public void withTimeoutCompletesInTime() throws Exception {
+        BillingFuture<String> source = new BillingFuture<String>();
+        BillingFuture<String> timed = source.withTimeout(5, TimeUnit.SECONDS);
+        source.complete("fast");
+        assertEquals("fast", timed.get(0, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void combineJoinsBothValues() throws Exception {
+        BillingFuture<String> first = new BillingFuture<String>();
+        BillingFuture<Integer> second = new BillingFuture<Integer>();
+        BillingFuture<String> combined = BillingFuture.combine(first, second, new Combiner());
+        second.complete(2);
+        assertFalse(combined.isDone());
+        first.complete("a");
+        assertEquals("a2", combined.get());
+    }
+
+    @Test
+    public void combineFailsFast() {
+        BillingFuture<String> first = new BillingFuture<String>();
+        BillingFuture<Integer> second = new BillingFuture<Integer>();
+        BillingFuture<String> combined = BillingFuture.combine(first, second, new Combiner());
+        second.fail(ERROR);
+        // no need to wait for the first one
+        assertTrue(combined.isDone());
+        assertEquals(IABHELPER_UNKNOWN_ERROR, combined.getResult().getResponse());
+        first.complete("late");
+        assertEquals(IABHELPER_UNKNOWN_ERROR, combined.getResult().getResponse());
+    }
+
+    @Test
+    public void failedFutureThrowsFromGet() {
+        BillingFuture<String> future = BillingFuture.failed(ERROR);
+        try {
+            future.get();
+            fail("Expected the failure to be thrown.");
+        } catch (IabException e) {
+            assertEquals(IABHELPER_UNKNOWN_ERROR, e.getResult().getResponse());
+        } catch (InterruptedException e) {
+            throw new AssertionError(e);
+        }
+        final List<String> heard = new ArrayList<String>();
+        future.addListener(new BillingFuture.Listener<String>() {
+            @Override
+            public void onComplete(IabResult result, String value) {
+                heard.add(value);
+            }
+        });
+        assertNull(heard.get(0));
+    }
+
+    private static class Combiner implements BillingFuture.Combiner<String, Integer, String> {
+        @Override
+        public String combine(String first, Integer second) {
+            return first + second;
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package com.farasource.billing.util;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.charset.Charset;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.Signature;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that a cached purchase can't be passed off as another product while keeping a
+ * valid signature.
+ */
+public class InventoryCacheTest {
+
+    private static final String CHEAP_JSON = "{\"orderId\":\"order\",\"packageName\":\"com.example\","
+            + "\"productId\":\"cheap\",\"purchaseTime\":1700000000000,\"purchaseState\":0,"
+            + "\"developerPayload\":\"payload\",\"purchaseToken\":\"token\"}";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private PurchaseVerifier verifier;
+    private String signature;
+    private InventoryCache cache;
+
+    @Before
+    public void setUp() throws Exception {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(1024);
+        KeyPair keys = generator.generateKeyPair();
+        Signature signer = Signature.getInstance("SHA1withRSA");
+        signer.initSign(keys.getPrivate());
+        signer.update(CHEAP_JSON.getBytes(Charset.forName("UTF-8")));
+        signature = Base64.encode(signer.sign());
+        verifier = new PurchaseVerifier(keys.getPublic());
+        cache = new InventoryCache(new File(folder.getRoot(), "inventory"));
+    }
+
+    @Test
+    public void untouchedPurchaseMatchesItsJson() throws Exception {
+        save(new InventorySnapshot.Builder().addPurchase(new Purchase("inapp", CHEAP_JSON, signature)));
+
+        Purchase cached = cache.open().getPurchase("cheap");
+        assertNotNull(cached);
+        assertEquals("token", cached.getToken());
+        assertTrue(cached.matchesOriginalJson());
+        assertTrue(cached.verifySignature(verifier, null));
+    }
+
+    @Test
+    public void swappedSkuIsRejected() {
+        // a validly signed cheap purchase relabelled as premium
+        Purchase relabelled = new Purchase("inapp", "order", "com.example", "premium", 1700000000000L, 0,
+                "payload", "token", CHEAP_JSON, signature);
+        save(new InventorySnapshot.Builder().addPurchase(relabelled));
+
+        Purchase cached = cache.open().getPurchase("premium");
+        assertNotNull(cached);
+        assertTrue(cached.verifySignature(verifier, null));
+        assertFalse(cached.matchesOriginalJson());
+    }
+
+    @Test
+    public void purchaseStoredUnderAnotherSkuIsRejected() throws Exception {
+        save(new InventorySnapshot.Builder().addPurchase("premium", new Purchase("inapp", CHEAP_JSON, signature)));
+
+        assertNull(cache.open().getPurchase("premium"));
+        assertNull(cache.load());
+    }
+
+    private void save(InventorySnapshot.Builder builder) {
+        cache.save(builder.build());
+    }
+}
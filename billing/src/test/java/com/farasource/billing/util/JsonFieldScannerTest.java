@@ -0,0 +1,111 @@
+package com.farasource.billing.util;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks that {@link JsonFieldScanner} reads the same values as {@link JSONObject}, both
+ * for the input it scans itself and for the input it hands over to JSONObject.
+ */
+public class JsonFieldScannerTest {
+
+    private static final String[] KEYS = {"s", "n", "b", "x"};
+
+    @Test
+    public void plainValues() throws Exception {
+        assertSameAsJsonObject("{\"s\":\"text\",\"n\":42,\"b\":true,\"x\":false}");
+        assertSameAsJsonObject("{ \"s\" : \"\" , \"n\" : -7 }");
+        assertSameAsJsonObject("{}");
+        assertSameAsJsonObject("{\"n\":9223372036854775807}");
+        assertSameAsJsonObject("{\"n\":123456789012345678}");
+    }
+
+    @Test
+    public void numbers() throws Exception {
+        assertSameAsJsonObject("{\"n\":-0}");
+        assertSameAsJsonObject("{\"n\":0,\"s\":-0}");
+        assertSameAsJsonObject("{\"n\":1.5,\"s\":2.25}");
+        assertSameAsJsonObject("{\"n\":-0.5}");
+        assertSameAsJsonObject("{\"n\":1e3,\"s\":2E-2,\"b\":1.5e+2}");
+        assertSameAsJsonObject("{\"n\":\"12\",\"s\":7}");
+        assertSameAsJsonObject("{\"n\":\"3.9\"}");
+        assertSameAsJsonObject("{\"n\":\"abc\"}");
+        assertSameAsJsonObject("{\"n\":4294967297}");
+    }
+
+    @Test
+    public void nestedValues() throws Exception {
+        // skipped when nobody asked for them
+        assertSameAsJsonObject("{\"o\":{\"s\":\"inner\",\"a\":[1,2,{\"n\":3}]},\"s\":\"outer\",\"n\":1}");
+        assertSameAsJsonObject("{\"a\":[\"}\",\"]\",\"\\\"\"],\"n\":5}");
+        // under a requested key
+        assertSameAsJsonObject("{\"s\":{\"n\":1},\"n\":[1,2]}");
+    }
+
+    @Test
+    public void escapes() throws Exception {
+        assertSameAsJsonObject("{\"s\":\"a\\\"b\\\\c\\/d\\n\\t\\r\\b\\f\"}");
+        assertSameAsJsonObject("{\"s\":\"\\u0041\\u00e9\\u20ac\"}");
+        assertSameAsJsonObject("{\"\\u0073\":\"escaped key\"}");
+        assertSameAsJsonObject("{\"s\\\"\":\"not s\",\"s\":\"s\"}");
+    }
+
+    @Test
+    public void nullLiteral() throws Exception {
+        assertSameAsJsonObject("{\"s\":null,\"n\":null}");
+        assertSameAsJsonObject("{\"s\":\"null\"}");
+    }
+
+    @Test
+    public void duplicateKeys() throws Exception {
+        assertSameAsJsonObject("{\"s\":\"first\",\"s\":\"second\"}");
+        assertSameAsJsonObject("{\"n\":1,\"s\":\"x\",\"n\":2}");
+    }
+
+    @Test
+    public void fallbackInput() throws Exception {
+        // lenient syntax that JSONObject accepts
+        assertSameAsJsonObject("{'s':'single'}");
+        assertSameAsJsonObject("{s:\"unquoted key\"}");
+        assertSameAsJsonObject("{\"s\":unquoted}");
+        assertSameAsJsonObject("{\"n\":0x1F}");
+        assertSameAsJsonObject("{\"n\":007}");
+        assertSameAsJsonObject("{\"o\":{'s':1},\"s\":\"x\"}");
+        assertSameAsJsonObject("{\"s\":\"x\"} trailing");
+        // and malformed input that JSONObject rejects
+        assertSameAsJsonObject("");
+        assertSameAsJsonObject("[]");
+        assertSameAsJsonObject("{\"s\":\"unterminated}");
+        assertSameAsJsonObject("{\"s\":\"bad escape \\u12\"}");
+        assertSameAsJsonObject("{\"s\" \"x\"}");
+        assertSameAsJsonObject("{\"s\":\"x\",}");
+        assertSameAsJsonObject("{\"s\":\"x\"");
+    }
+
+    private static void assertSameAsJsonObject(String json) throws JSONException {
+        JSONObject expected;
+        try {
+            expected = new JSONObject(json);
+        } catch (JSONException e) {
+            try {
+                JsonFieldScanner.scan(json, KEYS);
+                fail("JSONObject rejects " + json + " but the scanner read it.");
+            } catch (JSONException expectedFailure) {
+                // both reject it
+            }
+            return;
+        }
+        JsonFieldScanner scanner = JsonFieldScanner.scan(json, KEYS);
+        for (int i = 0; i < KEYS.length; i++) {
+            String message = json + " [" + KEYS[i] + "]";
+            assertEquals(message, expected.optString(KEYS[i]), scanner.optString(i));
+            assertEquals(message, expected.optString(KEYS[i], "fallback"), scanner.optString(i, "fallback"));
+            assertEquals(message, expected.optLong(KEYS[i]), scanner.optLong(i));
+            assertEquals(message, expected.optInt(KEYS[i]), scanner.optInt(i));
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package com.farasource.billing.util;
+
+import org.json.JSONException;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks that lazily parsed purchases read the same as eagerly parsed ones, alone and
+ * in an inventory.
+ */
+public class PurchaseTest {
+
+    private static final int PURCHASES = 100;
+
+    @Test
+    public void lazyInventoryMatchesEagerInventory() throws Exception {
+        InventorySnapshot.Builder eager = new InventorySnapshot.Builder();
+        InventorySnapshot.Builder lazy = new InventorySnapshot.Builder();
+        for (int i = 0; i < PURCHASES; i++) {
+            String json = "{\"orderId\":\"order." + i + "\",\"packageName\":\"ir.farasource.billing\","
+                    + "\"productId\":\"sku_" + i + "\",\"purchaseTime\":" + (1700000000000L + i)
+                    + ",\"purchaseState\":0,\"developerPayload\":\"payload\","
+                    + "\"purchaseToken\":\"token" + i + "\"}";
+            eager.addPurchase(new Purchase("inapp", json, "signature"));
+            lazy.addPurchase(Purchase.createLazy("inapp", json, "signature"));
+        }
+
+        Inventory eagerInventory = new Inventory(eager.build());
+        Inventory lazyInventory = new Inventory(lazy.build());
+        for (int i = 0; i < PURCHASES; i++) {
+            String sku = "sku_" + i;
+            Purchase lazyPurchase = lazyInventory.getPurchase(sku);
+            assertEquals("token" + i, lazyPurchase.getToken());
+            assertSameFields(eagerInventory.getPurchase(sku), lazyPurchase);
+        }
+    }
+
+    @Test
+    public void lazyGettersMatchEagerGetters() throws Exception {
+        String json = "{\"orderId\":\"o\",\"packageName\":\"p\",\"productId\":\"s\",\"purchaseTime\":12,"
+                + "\"purchaseState\":1,\"developerPayload\":\"d\",\"token\":\"t\"}";
+        Purchase eager = new Purchase("inapp", json, "sig");
+        Purchase lazy = Purchase.createLazy("inapp", json, "sig");
+        assertSameFields(eager, lazy);
+    }
+
+    @Test
+    public void lazyRejectsMalformedJson() {
+        try {
+            Purchase.createLazy("inapp", "{\"productId\":\"s\",", "sig");
+            fail("Malformed JSON should be reported.");
+        } catch (JSONException expected) {
+            // same as the constructor
+        }
+    }
+
+    private static void assertSameFields(Purchase eager, Purchase lazy) {
+        assertEquals(eager.getOrderId(), lazy.getOrderId());
+        assertEquals(eager.getPackageName(), lazy.getPackageName());
+        assertEquals(eager.getSku(), lazy.getSku());
+        assertEquals(eager.getPurchaseTime(), lazy.getPurchaseTime());
+        assertEquals(eager.getPurchaseState(), lazy.getPurchaseState());
+        assertEquals(eager.getDeveloperPayload(), lazy.getDeveloperPayload());
+        assertEquals(eager.getToken(), lazy.getToken());
+        assertEquals(eager.getSignature(), lazy.getSignature());
+    }
+}
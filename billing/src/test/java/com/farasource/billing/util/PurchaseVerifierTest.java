@@ -0,0 +1,84 @@
+package com.farasource.billing.util;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.Signature;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks that a reused {@link PurchaseVerifier} gives the same answers as the static
+ * {@link Security} helpers.
+ */
+public class PurchaseVerifierTest {
+
+    private static final int PURCHASES = 20;
+
+    private static String base64PublicKey;
+    private static String[] data;
+    private static String[] signatures;
+
+    @BeforeClass
+    public static void signPurchases() throws Exception {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(2048);
+        KeyPair keyPair = generator.generateKeyPair();
+        base64PublicKey = Base64.encode(keyPair.getPublic().getEncoded());
+
+        data = new String[PURCHASES];
+        signatures = new String[PURCHASES];
+        Signature signer = Signature.getInstance("SHA1withRSA");
+        for (int i = 0; i < PURCHASES; i++) {
+            data[i] = "{\"orderId\":\"order." + i + "\",\"productId\":\"sku_" + i
+                    + "\",\"purchaseTime\":1700000000000,\"purchaseToken\":\"token" + i + "\"}";
+            signer.initSign(keyPair.getPrivate());
+            signer.update(data[i].getBytes("UTF-8"));
+            signatures[i] = Base64.encode(signer.sign());
+        }
+    }
+
+    @Test
+    public void acceptsWhatSecurityAccepts() {
+        PurchaseVerifier verifier = PurchaseVerifier.getInstance(base64PublicKey);
+        for (int i = 0; i < PURCHASES; i++) {
+            assertTrue(Security.verifyPurchase(base64PublicKey, data[i], signatures[i]));
+            assertTrue(data[i], verifier.verifyPurchase(data[i], signatures[i]));
+        }
+    }
+
+    @Test
+    public void rejectsWhatSecurityRejects() {
+        PurchaseVerifier verifier = PurchaseVerifier.getInstance(base64PublicKey);
+        for (int i = 0; i < PURCHASES; i++) {
+            String tampered = data[i].replace("sku_", "premium_");
+            String otherSignature = signatures[(i + 1) % PURCHASES];
+            String[][] cases = {{tampered, signatures[i]}, {data[i], otherSignature}, {data[i], "not base64!"}};
+            for (String[] c : cases) {
+                assertFalse(Security.verifyPurchase(base64PublicKey, c[0], c[1]));
+                assertEquals(c[0], false, verifier.verifyPurchase(c[0], c[1]));
+            }
+        }
+    }
+
+    @Test
+    public void sharesOneVerifierPerKey() {
+        assertSame(PurchaseVerifier.getInstance(base64PublicKey), PurchaseVerifier.getInstance(base64PublicKey));
+    }
+
+    @Test
+    public void rejectsInvalidKey() {
+        try {
+            PurchaseVerifier.getInstance(Base64.encode("not a key".getBytes()));
+            fail("An invalid key should be rejected.");
+        } catch (IllegalArgumentException expected) {
+            // same as Security.generatePublicKey
+        }
+    }
+}
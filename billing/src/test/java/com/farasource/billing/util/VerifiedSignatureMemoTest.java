@@ -0,0 +1,74 @@
+package com.farasource.billing.util;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.security.KeyPairGenerator;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class VerifiedSignatureMemoTest {
+
+    private static final String JSON = "{\"productId\":\"gas\",\"purchaseToken\":\"token\"}";
+    private static final String SIGNATURE = "signature";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private PurchaseVerifier verifier;
+    private File memoFile;
+    private File secretFile;
+
+    @Before
+    public void setUp() throws Exception {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(1024);
+        verifier = new PurchaseVerifier(generator.generateKeyPair().getPublic());
+        memoFile = new File(folder.getRoot(), "memo");
+        secretFile = new File(folder.getRoot(), "secret");
+    }
+
+    @Test
+    public void remembersAcrossInstances() {
+        VerifiedSignatureMemo memo = newMemo();
+        memo.put(memo.keyFor(verifier, JSON, SIGNATURE));
+        memo.flush();
+
+        VerifiedSignatureMemo reloaded = newMemo();
+        assertTrue(reloaded.contains(reloaded.keyFor(verifier, JSON, SIGNATURE)));
+        assertFalse(reloaded.contains(reloaded.keyFor(verifier, JSON, "other")));
+    }
+
+    @Test
+    public void keysDependOnTheSecret() {
+        VerifiedSignatureMemo memo = newMemo();
+        VerifiedSignatureMemo.Key key = memo.keyFor(verifier, JSON, SIGNATURE);
+        assertEquals(key, memo.keyFor(verifier, JSON, SIGNATURE));
+
+        VerifiedSignatureMemo elsewhere = new VerifiedSignatureMemo(memoFile,
+                new File(folder.getRoot(), "other secret"), 16);
+        assertFalse(key.equals(elsewhere.keyFor(verifier, JSON, SIGNATURE)));
+    }
+
+    @Test
+    public void lostSecretDropsEntries() {
+        VerifiedSignatureMemo memo = newMemo();
+        memo.put(memo.keyFor(verifier, JSON, SIGNATURE));
+        memo.flush();
+        assertTrue(secretFile.delete());
+
+        VerifiedSignatureMemo reloaded = newMemo();
+        assertFalse(reloaded.contains(reloaded.keyFor(verifier, JSON, SIGNATURE)));
+        reloaded.flush();
+        assertFalse(newMemo().contains(reloaded.keyFor(verifier, JSON, SIGNATURE)));
+    }
+
+    private VerifiedSignatureMemo newMemo() {
+        return new VerifiedSignatureMemo(memoFile, secretFile, 16);
+    }
+}